@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import org.nuras.mcpha.emulator.SyntheticSpectrum;
+
+/**
+ * Realistic data for the benchmarks, laid out as the device returns it:
+ * 16384-bin histograms drawn from the emulator's spectrum and 32768-sample
+ * interleaved oscilloscope traces. Always built from the same seed so runs
+ * can be compared.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class BenchmarkData
+{
+  public static final int BINS = SyntheticSpectrum.BINS;
+
+  public static final int SAMPLES = 32768;
+
+  private static final long SEED = 20170301L;
+
+  /**
+   *
+   * @param events number of events in the histogram
+   * @param seed
+   * @return a histogram in a direct little-endian buffer
+   */
+  public static IntBuffer histogram(long events, long seed)
+  {
+    SyntheticSpectrum spectrum = new SyntheticSpectrum();
+    Random random = new Random(seed);
+    IntBuffer data = ByteBuffer.allocateDirect(4 * BINS)
+      .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    for (long i=0; i<events; i++)
+    {
+      int bin = spectrum.sample(random);
+      data.put(bin, data.get(bin) + 1);
+    }
+
+    return data;
+  }
+
+  /**
+   *
+   * @param events number of events in the histogram
+   * @return a histogram in a direct little-endian buffer
+   */
+  public static IntBuffer histogram(long events)
+  {
+    return histogram(events, SEED);
+  }
+
+  /**
+   *
+   * @param base
+   * @param events number of events to add to a copy of the base
+   * @return the histogram a poll later than base, with a few bins changed
+   */
+  public static IntBuffer histogramAfter(IntBuffer base, long events)
+  {
+    IntBuffer more = histogram(events, SEED + 1);
+    IntBuffer data = ByteBuffer.allocateDirect(4 * BINS)
+      .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    for (int i=0; i<BINS; i++)
+    {
+      data.put(i, base.get(i) + more.get(i));
+    }
+
+    return data;
+  }
+
+  /**
+   *
+   * @return an interleaved two channel trace in a direct little-endian
+   * buffer
+   */
+  public static ShortBuffer trace()
+  {
+    Random random = new Random(SEED);
+    ShortBuffer data = ByteBuffer.allocateDirect(2 * SAMPLES)
+      .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    for (int i=0; i<SAMPLES; i++)
+    {
+      double pulse = i / 2 >= 5000 ? 3000 * Math.exp(-(i / 2 - 5000) / 40.0) : 0;
+      data.put(i, (short)(pulse + random.nextInt(13) - 6));
+    }
+
+    return data;
+  }
+
+  /**
+   *
+   * @param events number of events in each channel's histogram
+   * @return a connection holding a histogram on each channel, that is not
+   * connected to a device and has no subscribers
+   */
+  public static DeviceConnection device(long events)
+  {
+    DeviceConnection device = new DeviceConnection("bench", 1);
+    for (HistogramChannel ch : device.channels)
+    {
+      IntBuffer src = histogram(events, SEED + ch.chan);
+      ch.backBuffer().asIntBuffer().put(src);
+      ch.data = ch.flip();
+      ch.timer = 123.45;
+      ch.sumBins();
+    }
+
+    return device;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line, adding the GC
+ * profiler so every result reports its allocation rate alongside its
+ * throughput.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class BenchmarkRunner
+{
+  /**
+   *
+   * @param args JMH command line options
+   * @throws IOException
+   * @throws CommandLineOptionException
+   * @throws RunnerException
+   */
+  public static void main(String[] args)
+    throws IOException, CommandLineOptionException, RunnerException
+  {
+    CommandLineOptions cmdLine = new CommandLineOptions(args);
+    if (cmdLine.shouldHelp())
+    {
+      cmdLine.showHelp();
+      return;
+    }
+    if (cmdLine.shouldList())
+    {
+      new Runner(cmdLine).list();
+      return;
+    }
+
+    new Runner(new OptionsBuilder()
+                     .parent(cmdLine)
+                     .addProfiler(GCProfiler.class)
+                     .build()).run();
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing websocket commands with json-simple, as the handler once did
+ * with a new parser per message, and with {@link CommandRequest} as it
+ * does now, reading the command and channel as the registry does.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParseBenchmark
+{
+  @Param({
+    "{\"command\":\"get_histogram_data\",\"device\":\"default\",\"chan\":0}",
+    "{\"command\":\"set_roi\",\"device\":\"default\",\"chan\":1,\"roi\":2,\"start\":2500,\"end\":2800}",
+    "{\"command\":\"set_histogram_view\",\"device\":\"default\",\"from\":0,\"to\":16383,\"points\":1024,\"mode\":\"minmax\"}"
+  })
+  public String message;
+
+  @Benchmark
+  public Object parse()
+    throws ParseException
+  {
+    return new JSONParser().parse(message);
+  }
+
+  @Benchmark
+  public long commandRequest()
+    throws IOException
+  {
+    CommandRequest request = CommandRequest.parse(message);
+
+    return request.getCommand().length() + request.getLong("chan", 0L);
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a histogram push: the per-bin JSON of JSON sessions, with and
+ * without a viewport, and the keyframe, delta and view frames of binary
+ * sessions.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramBenchmark
+{
+  private DeviceConnection device;
+
+  private HistogramView view;
+
+  private IntBuffer before;
+
+  private IntBuffer after;
+
+  private HistogramDeltaEncoder encoder;
+
+  private int sequence;
+
+  @Setup
+  public void setup()
+  {
+    device = BenchmarkData.device(1000000);
+    view = new HistogramView(0, BenchmarkData.BINS - 1, 1024, HistogramView.MODE_MINMAX);
+    before = BenchmarkData.histogram(1000000);
+    // about a second more of counts at a few thousand per second
+    after = BenchmarkData.histogramAfter(before, 3000);
+    encoder = new HistogramDeltaEncoder();
+  }
+
+  @Benchmark
+  public String jsonOneChannel()
+  {
+    return device.getHistogramJSON(0x01, null);
+  }
+
+  @Benchmark
+  public String jsonBothChannels()
+  {
+    return device.getHistogramJSON(DeviceConnection.ALL_CHANNELS, null);
+  }
+
+  @Benchmark
+  public String jsonView()
+  {
+    return device.getHistogramJSON(0x01, view);
+  }
+
+  @Benchmark
+  public ByteBuffer binaryKeyframe()
+  {
+    encoder.reset();
+
+    return encoder.encode(1, 0, 123.45, sequence++, before);
+  }
+
+  @Benchmark
+  public ByteBuffer binaryDelta()
+  {
+    // alternate between two snapshots so every frame is a delta, bar the
+    // periodic keyframes a real stream also has
+    return encoder.encode(1, 0, 123.45, sequence, (sequence++ & 1) == 0 ? before : after);
+  }
+
+  @Benchmark
+  public ByteBuffer binaryView()
+  {
+    return view.encode(1, 0, 123.45, sequence++, before);
+  }
+}
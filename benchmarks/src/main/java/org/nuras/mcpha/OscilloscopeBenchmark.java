@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting an interleaved 32768-sample trace into its channels and
+ * building the get_oscilloscope_data message, and encoding the same trace
+ * as a binary frame.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OscilloscopeBenchmark
+{
+  // bit 0 for channel 1 and bit 1 for channel 2
+  @Param({"1", "3"})
+  public int channels;
+
+  private DeviceConnection device;
+
+  private ShortBuffer trace;
+
+  private int sequence;
+
+  @Setup
+  public void setup()
+  {
+    device = BenchmarkData.device(0);
+    trace = BenchmarkData.trace();
+  }
+
+  @Benchmark
+  public String json()
+  {
+    return device.getOscilloscopeJSON(channels, trace, -1);
+  }
+
+  @Benchmark
+  public ByteBuffer binary()
+  {
+    return BinaryFrame.encodeOscilloscope(1, channels, sequence++, trace);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Searching a snapshot for peaks, when every peak has changed since the
+ * last search and has to be measured again, and when none has and the
+ * last measurements are kept.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeakSearchBenchmark
+{
+  private DeviceConnection device;
+
+  private PeakSearch search;
+
+  private int next = 0;
+
+  @Setup
+  public void setup()
+  {
+    device = BenchmarkData.device(1000000);
+    search = new PeakSearch();
+  }
+
+  @Benchmark
+  public boolean changed()
+  {
+    // the two channels hold different histograms
+    return search.update(device.channels[next++ & 1]);
+  }
+
+  @Benchmark
+  public boolean unchanged()
+  {
+    return search.update(device.channels[0]);
+  }
+}
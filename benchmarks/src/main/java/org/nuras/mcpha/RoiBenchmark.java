@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Summing the bins of a snapshot once, and building the get_roi_data
+ * summary of an increasing number of ROI's from those sums. The device has
+ * no subscribers, so nothing is sent.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoiBenchmark
+{
+  @Param({"1", "20", "100"})
+  public int count;
+
+  private DeviceConnection device;
+
+  @Setup
+  public void setup()
+  {
+    device = BenchmarkData.device(1000000);
+    HistogramChannel ch = device.channels[0];
+    int width = BenchmarkData.BINS / count;
+    for (int i=0; i<count; i++)
+    {
+      String name = "ROI #"+(i+1);
+      ch.rois.put(name, new HistogramChannel.ROI(name, i * width, i * width + width / 2));
+    }
+  }
+
+  @Benchmark
+  public long sumBins()
+  {
+    HistogramChannel ch = device.channels[0];
+    ch.sumBins();
+
+    return ch.counts;
+  }
+
+  @Benchmark
+  public void summary()
+    throws IOException
+  {
+    device.getRoiData(0);
+  }
+}
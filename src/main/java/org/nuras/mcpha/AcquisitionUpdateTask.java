@@ -16,99 +16,173 @@
 package org.nuras.mcpha;
 
 import java.io.IOException;
-import java.util.TimerTask;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.eclipse.jetty.websocket.api.Session;
-
 /**
+ * Polls the histograms of every acquiring channel of a device, pushing
+ * both channels together, until no channel is acquiring.
+ *
+ * The interval between polls adapts to the run: it halves while the
+ * spectrum is changing quickly and doubles while it is settling, within
+ * limits that widen with the number of subscribers, and drops to a slow
+ * idle rate when no one is subscribed. A run with a preset time is read
+ * again just after the preset should have been reached, and ends as soon
+ * as a poll finds its timer at the preset. A run without one ends when
+ * its timer value is the same for 2 consecutive polls.
  *
  * @author John Preston<byhisdeeds@gmail.com>
  */
-public class AcquisitionUpdateTask extends TimerTask
+public class AcquisitionUpdateTask extends ScheduledJob
 {
-  private final AtomicBoolean again = new AtomicBoolean(false);
-  
-  private final Session user;
-  
-  private final int chan;
+  // limits of the interval between polls while someone is subscribed, ms
+  public static final long MIN_DELAY = 250;
+
+  public static final long MAX_DELAY = 5000;
+
+  // interval between polls while no one is subscribed, ms
+  public static final long IDLE_DELAY = 10000;
+
+  // each this many subscribers raise the shortest interval by MIN_DELAY
+  private static final int SUBSCRIBERS_PER_STEP = 16;
+
+  // share of a histogram's counts that are new since the last poll, above
+  // which the spectrum is changing quickly and below which it is settling
+  private static final double FAST_CHANGE = 0.05;
+
+  private static final double SLOW_CHANGE = 0.005;
+
+  // time allowed after the preset for the device to stop the timer, ms
+  private static final long END_MARGIN = 5;
+
+  private final DeviceConnection device;
   
-  private final long delay;
+  private long delay;
+
+  // timer values and total counts of the last poll, or -1 for a channel
+  // that was not acquiring
+  private final double[] t0 = new double[]{-1.0, -1.0};
+
+  private final long[] counts = new long[]{-1, -1};
+
+  // when the next poll should start, for the jitter metric
+  private long due = 0;
   
   /**
    * 
-   * @param user
-   * @param chan
-   * @param delay number of milliseconds between loops
+   * @param device
+   * @param delay number of milliseconds between the first polls
    */
-  public AcquisitionUpdateTask(Session user, int chan, int delay)
+  public AcquisitionUpdateTask(DeviceConnection device, int delay)
   {
-    this.user = user;
-    this.chan = chan;
+    this.device = device;
     this.delay = delay;
   }
 
   /**
-   * Run method that returns when the return value from the 
-   * get timer value function is the same for 2 consecutive calls.
-   * 
+   * Poll the acquiring channels and push their histograms to all of the
+   * device's subscribers.
+   *
+   * @return milliseconds to the next poll, or -1 once no channel of the
+   * device is acquiring any more
    */
   @Override
-  public void run()
+  protected long step()
   {
-    double t0 = -1.0;
-    again.set(true);
-    
-    do
+    int mask = device.getAcquiringChannels(this);
+    if (mask == 0)
+    {
+      return -1;
+    }
+    if (due != 0)
+    {
+      Metrics.pollJitter(System.nanoTime() - due);
+    }
+
+    // time until the first run with a preset should have ended, ms
+    long untilEnd = Long.MAX_VALUE;
+    // -1 until there are two polls of a run with counts to compare
+    double change = -1.0;
+    try
     {
-      try
+      device.pushHistogramData(mask);
+
+      for (int chan=0; chan<t0.length; chan++)
       {
-        double t = Client.getHistogramData(user, chan);
-        if (t0 == t)
+        if ((mask & (1 << chan)) == 0)
         {
-          again.set(false);
+          t0[chan] = -1.0;
+          counts[chan] = -1;
+          continue;
         }
-        else
+        double t = device.getHistogramTimer(chan);
+        double remaining = device.getRemainingTime(chan);
+        if (remaining == 0.0 || t0[chan] == t)
         {
-          t0 = t;
+          // signal end of acquisition. The histogram just pushed was
+          // read after the timer stopped, so it is the final one
+          device.mcphaSetAquisitionState(chan, 0L);
+          t0[chan] = -1.0;
+          counts[chan] = -1;
+          continue;
         }
-        
-        try
+        t0[chan] = t;
+
+        long c = device.getHistogramCounts(chan);
+        if (counts[chan] >= 0 && c > 0)
         {
-          Thread.sleep(delay);
+          change = Math.max(change, (double)(c - counts[chan]) / c);
         }
-        catch (InterruptedException ex)
+        counts[chan] = c;
+
+        if (remaining > 0.0)
         {
-          Logger.getLogger(AcquisitionUpdateTask.class.getName()).log(Level.SEVERE, null, ex);
+          untilEnd = Math.min(untilEnd, (long)Math.ceil(remaining * 1000.0) + END_MARGIN);
         }
       }
-      catch (IOException ex)
-      {
-        Logger.getLogger(AcquisitionUpdateTask.class.getName()).log(Level.SEVERE, null, ex);
-        t0 = -1.0;
-      }
-    } while (again.get());
-    
-    try
-    {
-      // signal end of acquisition. We should only reach this point
-      // when the acquisition is completed abd successive get_timer_value
-      // calls return the same value. or we have been told to stop acquisition
-      Client.mcphaSetAquisitionState(user, chan, 0L);
     }
     catch (IOException ex)
     {
       Logger.getLogger(AcquisitionUpdateTask.class.getName()).log(Level.SEVERE, null, ex);
+      t0[0] = t0[1] = -1.0;
+      counts[0] = counts[1] = -1;
     }
+
+    adaptDelay(change, device.getSubscriberCount());
+    long wait = Math.min(delay, untilEnd);
+    due = System.nanoTime() + wait * 1000000L;
+
+    return wait;
   }
-  
+
   /**
-   * 
+   * Work out the interval to the next poll.
+   *
+   * @param change share of the counts that are new since the last poll,
+   * or -1 if it is not known yet
+   * @param subscribers
    */
-  public void exitLoop()
+  private void adaptDelay(double change, int subscribers)
   {
-    again.set(false);
+    if (subscribers == 0)
+    {
+      delay = IDLE_DELAY;
+      return;
+    }
+
+    long min = MIN_DELAY * (1 + subscribers / SUBSCRIBERS_PER_STEP);
+    if (change < 0.0)
+    {
+      // keep the interval
+    }
+    else if (change > FAST_CHANGE)
+    {
+      delay /= 2;
+    }
+    else if (change < SLOW_CHANGE)
+    {
+      delay *= 2;
+    }
+    delay = Math.max(min, Math.min(MAX_DELAY, delay));
   }
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Encoder for the binary websocket frames pushed to clients that have
+ * opted in with the <code>set_binary_mode</code> command. All values are
+ * little-endian. Every frame starts with a fixed 20 byte header:
+ *
+ * <pre>
+ *   offset  size  field
+ *        0     1  frame type (FRAME_HISTOGRAM, _DELTA, _VIEW or
+ *                 FRAME_OSCILLOSCOPE)
+ *        1     1  channel, or channel mask (FRAME_OSCILLOSCOPE)
+ *        2     2  device number
+ *        4     4  sequence number
+ *        8     8  timer value in seconds (IEEE 754 double)
+ *       16     4  number of bins, runs (_DELTA), points (_VIEW) or
+ *                 samples per channel (FRAME_OSCILLOSCOPE)
+ * </pre>
+ *
+ * A FRAME_HISTOGRAM (keyframe) is followed by the bin counts as unsigned
+ * 32-bit integers. A FRAME_HISTOGRAM_DELTA is followed by runs of changed
+ * bins, each being an unsigned 16-bit start bin, an unsigned 16-bit run
+ * length and then that many signed 32-bit differences to add to the
+ * counts of the previous frame (see {@link HistogramDeltaEncoder}). A
+ * FRAME_HISTOGRAM_VIEW is followed by (bin, count) pairs of unsigned 32-bit
+ * integers holding the part of the histogram the client asked to see (see
+ * {@link HistogramView}). A FRAME_OSCILLOSCOPE is followed by the samples
+ * of the channels in the mask (bit 0 for channel 1, bit 1 for channel 2)
+ * as signed 16-bit integers, interleaved sample by sample when both
+ * channels are sent. Its timer value is always 0.
+ *
+ * The histograms of both channels of a device are read together and sent
+ * as one websocket message holding a frame per channel, back to back.
+ * Histograms replayed from the history carry the device number
+ * REPLAY_DEVICE, which no device is given, so a client keeps their delta
+ * state apart from that of the live histograms.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class BinaryFrame
+{
+  public static final int HEADER_SIZE = 20;
+
+  public static final byte FRAME_HISTOGRAM = 1;
+
+  public static final byte FRAME_HISTOGRAM_DELTA = 2;
+
+  public static final byte FRAME_HISTOGRAM_VIEW = 3;
+
+  public static final byte FRAME_OSCILLOSCOPE = 4;
+
+  public static final int RUN_HEADER_SIZE = 4;
+
+  // device number of replayed histograms
+  public static final int REPLAY_DEVICE = 0xFFFF;
+
+  /**
+   * Encode the histogram as a binary frame ready to be sent.
+   *
+   * @param device
+   * @param chan
+   * @param timer
+   * @param sequence
+   * @param data
+   * @return the encoded frame, positioned at 0
+   */
+  public static ByteBuffer encodeHistogram(int device, int chan, double timer,
+    int sequence, IntBuffer data)
+  {
+    int bins = data.capacity();
+
+    ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 4 * bins);
+    frame.order(ByteOrder.LITTLE_ENDIAN);
+    putHeader(frame, FRAME_HISTOGRAM, device, chan, sequence, timer, bins);
+
+    for (int i=0; i<bins; i++)
+    {
+      frame.putInt(data.get(i));
+    }
+    frame.flip();
+
+    return frame;
+  }
+
+  /**
+   * Encode an oscilloscope trace as a binary frame ready to be sent.
+   *
+   * @param device
+   * @param channels bit 0 for channel 1 and bit 1 for channel 2
+   * @param sequence
+   * @param data samples of both channels, interleaved
+   * @return the encoded frame, positioned at 0
+   */
+  public static ByteBuffer encodeOscilloscope(int device, int channels,
+    int sequence, ShortBuffer data)
+  {
+    boolean channel_1 = (channels & 0x01) != 0;
+    boolean channel_2 = (channels & 0x02) != 0;
+    int samples = data.capacity() / 2;
+    int n = (channel_1 ? samples : 0) + (channel_2 ? samples : 0);
+
+    ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 2 * n);
+    frame.order(ByteOrder.LITTLE_ENDIAN);
+    putHeader(frame, FRAME_OSCILLOSCOPE, device, channels & 0x03, sequence,
+      0.0, samples);
+
+    for (int i=0; i<samples; i++)
+    {
+      if (channel_1)
+      {
+        frame.putShort(data.get(2*i));
+      }
+      if (channel_2)
+      {
+        frame.putShort(data.get(2*i+1));
+      }
+    }
+    frame.flip();
+
+    return frame;
+  }
+
+  /**
+   * Join frames into one message.
+   *
+   * @param frames
+   * @param n number of frames to join
+   * @return the frames back to back, positioned at 0
+   */
+  public static ByteBuffer join(ByteBuffer[] frames, int n)
+  {
+    if (n == 1)
+    {
+      return frames[0];
+    }
+
+    int size = 0;
+    for (int i=0; i<n; i++)
+    {
+      size += frames[i].remaining();
+    }
+
+    ByteBuffer message = ByteBuffer.allocate(size);
+    for (int i=0; i<n; i++)
+    {
+      message.put(frames[i].duplicate());
+    }
+    message.flip();
+
+    return message;
+  }
+
+  /**
+   *
+   * @param frame
+   * @param type
+   * @param device
+   * @param chan
+   * @param sequence
+   * @param timer
+   * @param count
+   */
+  static void putHeader(ByteBuffer frame, byte type, int device, int chan,
+    int sequence, double timer, int count)
+  {
+    frame.put(type);
+    frame.put((byte)chan);
+    frame.putShort((short)device);
+    frame.putInt(sequence);
+    frame.putDouble(timer);
+    frame.putInt(count);
+  }
+}
@@ -16,19 +16,19 @@
 package org.nuras.mcpha;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Timer;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -37,7 +37,6 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
-import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 
 import org.json.JSONArray;
@@ -51,20 +50,13 @@ import static spark.Spark.*;
  */
 public class Client
 {
-  static class ROI
-  {
-    public int start = 0;
-    public int end = 0;
-    public long counts = -1;
-  }
-  
   public static final long TIMER_FREQ = 125000000L;
   
   public static final double TIME_PER_TICK = 1.0 / (double)TIMER_FREQ;
   
-  private static final int SHIFT_CODE = 56;
+  public static final int SHIFT_CODE = 56;
   
-  private static final int SHIFT_CHAN = 52;
+  public static final int SHIFT_CHAN = 52;
   
   public static final Long MCPHA_COMMAND_RESET_TIMER = 0L;
 
@@ -96,6 +88,14 @@ public class Client
   
   public static final Long MCPHA_COMMAND_READ_HISTOGRAM_DATA = 14L;
   
+  public static final Long MCPHA_COMMAND_SET_TRIGGER_SOURCE = 15L;
+
+  public static final Long MCPHA_COMMAND_SET_TRIGGER_SLOPE = 16L;
+
+  public static final Long MCPHA_COMMAND_SET_TRIGGER_MODE = 17L;
+
+  public static final Long MCPHA_COMMAND_SET_TRIGGER_LEVEL = 18L;
+
   public static final Long MCPHA_COMMAND_SET_NUMBER_OF_SAMPLES_BEFORE_TRIGGER = 19L;
 
   public static final Long MCPHA_COMMAND_SET_TOTAL_NUMBER_OF_SAMPLES_TO_ACQUIRE = 20L;
@@ -110,24 +110,50 @@ public class Client
   // so it needs to be thread-safe (http://stackoverflow.com/a/2688817)
   static Map<Session, String> userUsernameMap = new ConcurrentHashMap<>();
   
-  static Socket deviceSocket = null;
+  // sessions that have asked for histogram data as binary frames
+  static Set<Session> binarySessions = ConcurrentHashMap.newKeySet();
+  
+  // messages waiting to be sent, keyed by the session they are sent to
+  static Map<Session, SendQueue> sendQueues = new ConcurrentHashMap<>();
   
-  static IntBuffer histogram_data = null;
+  // connected devices keyed by device id
+  static Map<String, DeviceConnection> devices = new ConcurrentHashMap<>();
   
-  static boolean acquisition_state_active = false;
+  // id of the device used by commands that do not name one
+  public static final String DEFAULT_DEVICE = "default";
   
   // Assign to username for next connecting user
   static int nextUserNumber = 1;
   
-  static ROI[] rois = new ROI[]{new ROI(), new ROI(), new ROI()};
-
-  static AcquisitionUpdateTask acquisitionUpdateTask = null;
+  // Assign to the number of the next device added to the registry
+  static AtomicInteger nextDeviceNumber = new AtomicInteger();
   
-  static Timer acquisitionMonitorTimer = null;
+  static boolean debug = false;
   
-  static long aquisitionTime = 0L;
+  // number of threads servicing the device connections
+  static int ioThreads = 2;
   
-  static boolean debug = false;
+  private static DeviceIOEngine ioEngine = null;
+  
+  // number of threads running acquisition, oscilloscope and replay jobs
+  static int schedulerThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+  
+  private static ScheduledThreadPoolExecutor scheduler = null;
+  
+  // number of threads running websocket commands
+  static int workerThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+  
+  private static ExecutorService workers = null;
+  
+  // commands waiting to be run, keyed by the session that sent them
+  static Map<Session, CommandQueue> commandQueues = new ConcurrentHashMap<>();
+  
+  // directory histogram snapshots are logged to during acquisition runs,
+  // or null if they are not logged
+  static File historyDir = null;
+  
+  // history replays keyed by the session they are sent to
+  static Map<Session, SpectrumReplay> replays = new ConcurrentHashMap<>();
   
   /**
    * 
@@ -157,10 +183,46 @@ public class Client
                                .desc("websocket url")
                                .build();
 
+    Option iothreadsOption = Option.builder("t")
+                                   .longOpt("iothreads")
+                                   .numberOfArgs(1)
+                                   .required(false)
+                                   .type(Number.class)
+                                   .desc("number of device i/o threads")
+                                   .build();
+
+    Option schedulerthreadsOption = Option.builder("s")
+                                          .longOpt("schedulerthreads")
+                                          .numberOfArgs(1)
+                                          .required(false)
+                                          .type(Number.class)
+                                          .desc("number of acquisition and oscilloscope job threads")
+                                          .build();
+
+    Option workerthreadsOption = Option.builder("w")
+                                       .longOpt("workerthreads")
+                                       .numberOfArgs(1)
+                                       .required(false)
+                                       .type(Number.class)
+                                       .desc("number of websocket command threads")
+                                       .build();
+
+    Option historydirOption = Option.builder("l")
+                                    .longOpt("historydir")
+                                    .numberOfArgs(1)
+                                    .required(false)
+                                    .type(String.class)
+                                    .desc("directory to log histogram snapshots to")
+                                    .build();
+
     Options options = new Options();
     options.addOption(helpOption);
     options.addOption(debugOption);
     options.addOption(wsurlOption);
+    options.addOption(iothreadsOption);
+    options.addOption(schedulerthreadsOption);
+    options.addOption(workerthreadsOption);
+    options.addOption(historydirOption);
 
     CommandLineParser parser = new DefaultParser();
     CommandLine cmdLine = parser.parse(options, args);
@@ -175,11 +237,34 @@ public class Client
       debug = cmdLine.hasOption("debug");
       String wsurl = cmdLine.hasOption("wsurl") ?
         ((String)cmdLine.getParsedOptionValue("/wsurl")) : "mcpha";
+      if (cmdLine.hasOption("iothreads"))
+      {
+        ioThreads = ((Number)cmdLine.getParsedOptionValue("iothreads")).intValue();
+      }
+      if (cmdLine.hasOption("schedulerthreads"))
+      {
+        schedulerThreads = ((Number)cmdLine.getParsedOptionValue("schedulerthreads")).intValue();
+      }
+      if (cmdLine.hasOption("workerthreads"))
+      {
+        workerThreads = ((Number)cmdLine.getParsedOptionValue("workerthreads")).intValue();
+      }
+      if (cmdLine.hasOption("historydir"))
+      {
+        historyDir = new File((String)cmdLine.getParsedOptionValue("historydir"));
+      }
 
 //    staticFiles.externalLocation("/html5");
       staticFiles.location("/html5"); //index.html is served at localhost:4567 (default port)
       staticFiles.expireTime(600);
       webSocket(wsurl.startsWith("/")?wsurl:"/"+wsurl, WebsocketHandler.class);
+      get("/metrics", (request, response) ->
+      {
+        response.type("text/plain; version=0.0.4");
+        return Metrics.scrape();
+      });
+      get("/export/device/:device/:chan", SpectrumExport::exportDevice);
+      get("/export/history/:run", SpectrumExport::exportHistory);
       init();
     }
   }
@@ -197,825 +282,391 @@ public class Client
   }
   
   /**
+   * Return the engine servicing the device connections, starting it if
+   * this is the first device to connect.
    * 
-   * @param user 
-   * @param chan 
-   * @throws java.io.IOException 
+   * @return the device i/o engine
+   * @throws IOException 
    */
-  synchronized public static void mcphaStartAcquisition(Session user, int chan)
+  synchronized static DeviceIOEngine getIOEngine()
     throws IOException
   {
-    // if device not connected then return
-    if (deviceSocket == null || !deviceSocket.isConnected())
-    {
-      return;
-    }
-
-    // start acquisition
-    // device inactive
-    mcphaSetAquisitionState(user, chan, 1L);
-    
-    if (acquisitionUpdateTask != null)
-    {
-      acquisitionUpdateTask.cancel();
-    }
-    
-    // inistantiate new task
-    acquisitionUpdateTask = new AcquisitionUpdateTask(user, chan, 1000);
-    
-    // cancel any existing timer tasks.
-    if (acquisitionMonitorTimer != null)
+    if (ioEngine == null)
     {
-      acquisitionMonitorTimer.cancel();
+      ioEngine = new DeviceIOEngine(ioThreads);
     }
     
-    // create new timer task
-    acquisitionMonitorTimer = new Timer();
-    acquisitionMonitorTimer.schedule(acquisitionUpdateTask, 0);
+    return ioEngine;
   }
-
+  
   /**
+   * Return the scheduler shared by all acquisition, oscilloscope and
+   * replay jobs, starting it the first time it is needed.
    * 
-   * @param user 
-   * @param chan 
-   * @throws java.io.IOException 
+   * @return the job scheduler
    */
-  public static void mcphaStopAcquisition(Session user, int chan)
-    throws IOException
+  synchronized static ScheduledExecutorService getScheduler()
   {
-    // if device not connected then return
-    if (deviceSocket == null || !deviceSocket.isConnected())
+    if (scheduler == null)
     {
-      return;
-    }
-
-    if (acquisitionUpdateTask != null)
-    {
-      acquisitionUpdateTask.exitLoop();
-    }
-    else
-    {
-      // stop data acquisition
-      // device inactive
-      mcphaSetAquisitionState(user, chan, 0L);
-    }
-    
-    // cancel any existing timer tasks.
-    if (acquisitionMonitorTimer != null)
-    {
-      acquisitionMonitorTimer.cancel();
+      AtomicInteger n = new AtomicInteger();
+      scheduler = new ScheduledThreadPoolExecutor(schedulerThreads, r ->
+      {
+        Thread t = new Thread(r, "mcpha-scheduler-"+n.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      });
+      // cancelled steps would otherwise stay queued until they were due
+      scheduler.setRemoveOnCancelPolicy(true);
     }
     
-    // help out garbage collector
-    acquisitionUpdateTask = null;
-    acquisitionMonitorTimer = null;
+    return scheduler;
   }
   
   /**
-   * Sends a message from one user to all users, along with a list
-   * of current usernames
+   * Return the pool that runs websocket commands, starting it the first
+   * time it is needed.
    * 
-   * @param sender
-   * @param message 
+   * @return the command worker pool
    */
-  public static void broadcastMessage(String sender, String message)
+  synchronized static ExecutorService getWorkers()
   {
-    userUsernameMap.keySet().stream().filter(Session::isOpen).forEach(session ->
+    if (workers == null)
     {
-      try
-      {
-//        session.getRemote().sendString(String.valueOf(new JSONObject()
-//          .put("userMessage", createHtmlMessageFromSender(sender, message))
-//          .put("userlist", userUsernameMap.values())
-//        ));
-        session.getRemote().sendString("sender="+sender+", message="+message);
-      }
-      catch (IOException e)
+      AtomicInteger n = new AtomicInteger();
+      workers = Executors.newFixedThreadPool(workerThreads, r ->
       {
-        e.printStackTrace();
-      }
-    });
+        Thread t = new Thread(r, "mcpha-worker-"+n.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    
+    return workers;
   }
   
   /**
    * 
-   * @param dest
-   * @param json
-   * @throws IOException 
+   * @param user
+   * @return the queue of commands waiting to be run for the user
    */
-  public static void sendJSONObjectMessage(RemoteEndpoint dest, JSONObject json)
-    throws IOException
+  static CommandQueue getCommandQueue(Session user)
   {
-    sendJSONTextMessage(dest, json.toString());
+    return commandQueues.computeIfAbsent(user, k -> new CommandQueue());
   }
   
   /**
+   * Return the device with the given id, adding a new unconnected device
+   * to the registry if there is none.
    * 
-   * @param dest
-   * @param json
-   * @throws IOException 
+   * @param id
+   * @return the device
    */
-  public static void sendJSONTextMessage(RemoteEndpoint dest, String json)
-    throws IOException
+  public static DeviceConnection getDevice(String id)
   {
-    logDebugMessage("PUSH_MESSAGE:"+json);
-    
-    dest.sendString(json);
-  }
-
-  /**
-   * 
-   * @return 
-   */
-  private static JSONObject createJSONResponseObject()
-  {
-    JSONObject json = new JSONObject();
-    json.put("type", "resp");
-    
-    return json;
+    return devices.computeIfAbsent(id,
+      k -> new DeviceConnection(k,
+        Math.floorMod(nextDeviceNumber.getAndIncrement(), BinaryFrame.REPLAY_DEVICE)));
   }
   
   /**
+   * Disconnect the device with the given id and drop it from the registry.
    * 
    * @param user
-   * @param deviceip
-   * @param port 
-   */
-  synchronized public static void connectToDevice(Session user,
-    String deviceip, int port)
-  {
-    try
-    {
-      if (deviceSocket == null || !deviceSocket.isConnected())
-      {
-        deviceSocket = new Socket();
-        deviceSocket.connect(new InetSocketAddress(deviceip,port), 8000);
-        deviceSocket.setSoTimeout(60000);
-      }
-
-      JSONObject json = createJSONResponseObject();
-      json.put("command", "connect");
-      json.put("message", "Connection established");
-      json.put("status", 0);
-      sendJSONObjectMessage( user.getRemote(), json);
-
-      
-      // initialise device
-      mcphaSetSampleRate(4L);
-      mcphaSetPhaDelay(0L, 100L);
-      mcphaSetPhaMinThreshold(0L, 300L);
-      mcphaSetPhaMaxThreshold(0L, 16300L);
-      mcphaSetNegatorMode(0L, 0L);
-      mcphaSetNegatorMode(1L, 0L);
-//      mcphaResetHistogram(0);
-      
-      // get histgram data
-      getHistogramData(user, 0);
-    }
-    catch (IOException ex)
-    {
-      if (deviceSocket != null)
-      {
-        try
-        {
-          deviceSocket.close();
-        }
-        catch (IOException ex1)
-        {
-          Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex1);
-        }
-      }
-      deviceSocket = null;
-      try
-      {
-        JSONObject json = createJSONResponseObject();
-        json.put("command", "connect");
-        json.put("message", ex.toString());
-        json.put("status", 1);
-        sendJSONObjectMessage( user.getRemote(), json);
-      }
-      catch (IOException ex1)
-      {
-        Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex1);
-      }
-    }
-  }
-
-  /**
-   * Close socket and disconnect from Red Pitaya device.
-   * 
-   * @param user
-   * @throws java.io.IOException
+   * @param id
+   * @throws IOException 
    */
-  synchronized public static void disconnectFromDevice(Session user)
+  public static void removeDevice(Session user, String id)
     throws IOException
   {
-    JSONObject json = createJSONResponseObject();
-    json.put("command", "disconnect");
-    json.put("status", 0);
-
-    if (deviceSocket == null)
+    DeviceConnection device = devices.remove(id);
+    if (device != null)
     {
-      json.put("message", "Nothing to do. Device not connected");
+      device.disconnectFromDevice(user);
     }
     else
     {
-      deviceSocket.close();
-      deviceSocket = null;
-      json.put("message", "Device disconnected");
-    }
-    
-    sendJSONObjectMessage(user.getRemote(), json);
-  }
-
-  /**
-   * Start/Stop data acquisition of the connected device. When state is 0
-   * then the acquisition is stopped, and when it is 1 then it is active.
-   * 
-   * @param user 
-   * @param chan 
-   * @param state 
-   * @throws java.io.IOException 
-   */
-  synchronized public static void mcphaSetAquisitionState(Session user, int chan, long state)
-    throws IOException
-  {
-    if (deviceSocket != null && deviceSocket.isConnected())
-    {
-      mcphaSetTimerMode(chan, state);
-      
-      acquisition_state_active = state == 1;
       JSONObject json = createJSONResponseObject();
-      json.put("command", "set_acquisition_state");
-      json.put("message", "");
-      json.put("state", acquisition_state_active ? "active" : "inactive");
+      json.put("command", "disconnect");
+      json.put("device", id);
+      json.put("message", "Nothing to do. Device not connected");
       json.put("status", 0);
-      sendJSONObjectMessage(user.getRemote(), json);
+      sendJSONObjectMessage(user, json);
     }
   }
-
+  
   /**
+   * Forget the user and unsubscribe them from all devices.
    * 
    * @param user 
-   * @throws java.io.IOException 
    */
-  synchronized public static void mcphaGetAquisitionState(Session user)
-    throws IOException
+  public static void removeSession(Session user)
   {
-    if (deviceSocket != null)
+    userUsernameMap.remove(user);
+    binarySessions.remove(user);
+    SendQueue queue = sendQueues.remove(user);
+    if (queue != null)
     {
-      JSONObject json = createJSONResponseObject();
-      json.put("command", "get_acquisition_state");
-      json.put("message", "");
-      json.put("state", acquisition_state_active ? "active" : "inactive");
-      json.put("status", 0);
-      sendJSONObjectMessage(user.getRemote(), json);
+      queue.close();
     }
-  }
-
-  /**
-   * 
-   * @param user
-   * @param chan
-   * @return timer value
-   * @throws IOException 
-   */
-  synchronized public static double getHistogramData(Session user, long chan)
-    throws IOException
-  {
-    // get elapsed time
-    double t = mcphaGetTimerValue(chan);
-
-    // get histogram data
-    histogram_data = mcphaGetHistogramData(chan);
-
-    // push data
-    JSONObject json = createJSONResponseObject();
-    json.put("command", "get_histogram_data");
-    json.put("message", "");
-    json.put("status", 0);
-    json.put("timer", String.format("%.2f", t));
-    json.put("label", "histogram");
-
-    JSONArray arr = new JSONArray();
-    for (int i=0; i<histogram_data.capacity(); i++)
+    CommandQueue commands = commandQueues.remove(user);
+    if (commands != null)
     {
-      JSONArray xy = new JSONArray();
-      xy.put(i).put(histogram_data.get(i));
-      arr.put(xy);
+      commands.close();
     }
-    json.put("data", arr);
-        
-    sendJSONObjectMessage(user.getRemote(), json);
-
-    // if ROI's have been defined then we push their data
-    for (int i=1; i<=3; i++)
+    devices.values().forEach(device -> device.unsubscribe(user));
+    SpectrumReplay replay = replays.remove(user);
+    if (replay != null)
     {
-      getRoiData(user, i);
+      replay.cancel();
     }
-    
-    return t;
+    Metrics.removeSession(user);
   }
-
+  
   /**
+   * Send the user the runs in the history directory.
    * 
    * @param user
-   * @param chan
    * @throws IOException 
    */
-  synchronized public static void clearSpectrumData(Session user, long chan)
+  public static void listHistory(Session user)
     throws IOException
   {
-    mcphaResetHistogram(chan);
-
-    // get histogram data
-    getHistogramData(user, chan);
-  }
-
-  /**
-   * 
-   * @param user
-   * @param roi
-   * @throws java.io.IOException
-   */
-  synchronized public static void getRoiData(Session user, int roi)
-    throws IOException
-  {
-    if (histogram_data != null && rois[roi-1].counts != -1)
+    JSONArray runs = new JSONArray();
+    File[] files = historyDir != null ? historyDir.listFiles(
+      (dir, name) -> name.endsWith(SpectrumLog.SUFFIX)) : null;
+    if (files != null)
     {
-      long counts = 0;
-      
-      JSONArray data = new JSONArray();
-      for (int i=rois[roi-1].start; i<=rois[roi-1].end; i++)
+      Arrays.sort(files);
+      for (File file : files)
       {
-        JSONArray o = new JSONArray();
-        int y = histogram_data.get(i);
-        o.put(i).put(y);
-        data.put(o);
-        counts += y;
+        try
+        {
+          SpectrumLog log = SpectrumLog.open(file);
+          String name = file.getName();
+          JSONObject run = new JSONObject();
+          run.put("run", name.substring(0, name.length()-SpectrumLog.SUFFIX.length()));
+          run.put("device", log.getDevice());
+          run.put("chan", log.getChannel());
+          run.put("start", log.getStart());
+          run.put("records", log.getRecordCount());
+          runs.put(run);
+          log.close();
+        }
+        catch (IOException ex)
+        {
+          Logger.getLogger(Client.class.getName()).log(Level.WARNING, null, ex);
+        }
       }
-
-      JSONObject json = new JSONObject();
-      json.put("label", "ROI #"+roi);
-      json.put("counts", counts);
-      json.put("start", rois[roi-1].start);
-      json.put("end", rois[roi-1].end);
-      json.put("data", data);
-      json.put("roi", roi);
-      json.put("command", "get_roi_data");
-      json.put("message", "");
-      json.put("status", 0);
-      
-      sendJSONObjectMessage(user.getRemote(), json);
     }
-  }
 
-  /**
-   * 
-   * @param user
-   * @param roi
-   * @param start
-   * @param end
-   * @throws IOException 
-   */
-  synchronized public static void mcphaSetRoi(Session user, int roi, int start,
-    int end)
-    throws IOException
-  {
-    ROI r = null;
-    
-    if (roi < 1 || roi > 3)
-    {
-      JSONObject json = createJSONResponseObject();
-      json.put("command", "set_roi");
-      json.put("message", String.format("ROI number [%d] outside range of 1 to 3.", roi));
-      json.put("status", 1);
-      sendJSONObjectMessage( user.getRemote(), json);
-    }
-    
-    rois[roi-1].start = start;
-    rois[roi-1].end = end;
-    rois[roi-1].counts = 0L;
-
-    getRoiData(user, roi);
-//    if (json != null)
-//    {
-//      JSONObject o = createJSONResponseObject();
-//      o.put("command", "get_roi_data");
-//      o.put("message", "");
-//      o.put("roi"+roi, json);
-//      o.put("status", 0);
-//      sendJSONObjectMessage(user.getRemote(), o);
-//    }
+    JSONObject json = createJSONResponseObject();
+    json.put("command", "list_history");
+    json.put("message", historyDir == null ? "History is not being logged" : "");
+    json.put("runs", runs);
+    json.put("status", 0);
+    sendJSONObjectMessage(user, json);
   }
-
+  
   /**
+   * Open a logged run for reading.
    * 
-   * @param user
-   * @param channels
-   * @param trigger_mode
-   * @param trigger_level
-   * @param trigger_slope
-   * @param trigger_source
-   * @throws IOException 
+   * @param run name of the run, as listed by list_history
+   * @return the run's log
+   * @throws IOException if history is not logged, or there is no such run
    */
-  synchronized public static void acquireOscilloscopeData(Session user,
-    int channels, String trigger_mode, int trigger_level, String trigger_slope,
-    int trigger_source)
+  static SpectrumLog openRun(String run)
     throws IOException
   {
-    mcphaResetOscilloscope();
-    
-    // Set number of samples to skip before trigger
-    mcphaSetNumberOfSamplesBeforeTrigger(5000);
-    
-    // Set total number of samples to acquire for this run
-    mcphaSetTotalNumberOfSamplesToAcquire(65536);
-    
-    // Start oscilloscope
-    mcphaStartOscilloscope();
-    
-    // wait for 200 milliseconds
-    try
-    {
-      Thread.sleep(200);
-    }
-    catch (InterruptedException ex)
+    if (historyDir == null)
     {
-      Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
+      throw new IOException("History is not being logged");
     }
-    
-    // Read oscilloscope status
-    for (int i=0; i<5; i++)
+    if (!run.matches("[A-Za-z0-9_.-]+") || run.startsWith("."))
     {
-      try
-      {
-        Thread.sleep(100);
-      }
-      catch (InterruptedException ex)
-      {
-        Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
-      }
-      System.out.println("Oscilloscope status:"+mcphaReadOscilloscopeStatus());
+      throw new IOException("Invalid run name "+run);
     }
-    
-    // get oscillsocope data
-    ShortBuffer data = mcphaGetOsilloscopeData();
-    
-    boolean channel_1_requested = (channels & 0x01) != 0;
-    boolean channel_2_requested = (channels & 0x02) != 0;
-    
-    // push data
-    JSONObject json = createJSONResponseObject();
-    json.put("command", "get_oscilloscope_data");
-    json.put("message", "");
-    json.put("status", 0);
-
-    JSONArray arr1 = new JSONArray();
-    JSONArray arr2 = new JSONArray();
-    data.rewind();
-    for (int i=0,n1=0,n2=0; i<data.capacity(); i+=2)
-    {
-      // channel 1 data
-      JSONArray xy = new JSONArray();
-      short d = data.get();
-      if (channel_1_requested)
-      {
-        arr1.put(xy.put(n1++).put(d));
-      }
-      // channel 2 data
-      xy = new JSONArray();
-      d = data.get();
-      if (channel_2_requested)
-      {
-        arr2.put(xy.put(n2++).put(d));
-      }
-    }
-    json.put("data1", arr1);
-    json.put("label1", channel_1_requested ? "Channel 1" : "");
-    
-    json.put("data2", arr2);
-    json.put("label2", channel_2_requested ? "Channel 2" : "");
-        
-    sendJSONObjectMessage(user.getRemote(), json);
 
+    return SpectrumLog.open(new File(historyDir, run+SpectrumLog.SUFFIX));
   }
-
+  
   /**
-   * Set sample rate
+   * Replay a logged run to the user, replacing any replay already running
+   * for them. Live data from subscribed devices is still sent during the
+   * replay, so a user who only wants the replay unsubscribes first.
    * 
-   * @param rate 
-   * @throws java.io.IOException 
+   * @param user
+   * @param run name of the run, as listed by list_history
+   * @param speed multiple of the original rate, or 0 for no delay
+   * @param from index of the first record to send
+   * @throws IOException 
    */
-  synchronized public static void mcphaSetSampleRate(long rate)
+  public static void startReplay(Session user, String run, double speed,
+    long from)
     throws IOException
   {
-    if (rate < 4)
+    SpectrumLog log = openRun(run);
+    SpectrumReplay replay = new SpectrumReplay(user, log, run, speed, from);
+    SpectrumReplay previous = replays.put(user, replay);
+    if (previous != null)
     {
-      rate = 4;
+      previous.cancel();
     }
-    
-    sendCommand(MCPHA_COMMAND_SET_SAMPLE_RATE, 0L, rate);
-  }
-
-  /**
-   * Reset histogram
-   * 
-   * @param chan 
-   * @throws java.io.IOException 
-   */
-  synchronized public static void mcphaResetHistogram(long chan)
-    throws IOException
-  {
-    sendCommand(MCPHA_COMMAND_RESET_HISTOGRAM, chan, 0L);
-  }
-
-  /**
-   * Reset oscilloscope
-   * 
-   * @throws java.io.IOException 
-   */
-  synchronized public static void mcphaResetOscilloscope()
-    throws IOException
-  {
-    sendCommand(MCPHA_COMMAND_RESET_OSCILLOSCOPE, 0L, 0L);
-  }
-
-  /**
-   * Reset generator
-   * 
-   * @throws java.io.IOException 
-   */
-  synchronized public static void mcphaResetGenerator()
-    throws IOException
-  {
-    sendCommand(MCPHA_COMMAND_RESET_GENERATOR, 0L, 0L);
-  }
-
-  /**
-   * Set negator mode, 0 for disabled and 1 for enabled
-   * 
-   * @param chan
-   * @param mode
-   * @throws java.io.IOException 
-   */
-  synchronized public static void mcphaSetNegatorMode(long chan, long mode)
-    throws IOException
-  {
-    sendCommand(MCPHA_COMMAND_SET_NEGATOR_MODE, chan, mode);
-  }
-
-  /**
-   * Set baseline mode, 0 for none and 1 for auto
-   * 
-   * @param chan
-   * @param mode
-   * @throws java.io.IOException 
-   */
-  synchronized public static void mcphaSetBaselineMode(long chan, long mode)
-    throws IOException
-  {
-    sendCommand(MCPHA_COMMAND_SET_BASELINE_MODE, chan, mode);
-  }
 
-  /**
-   * Set baseline level
-   * 
-   * @param chan
-   * @param level
-   * @throws java.io.IOException 
-   */
-  synchronized public static void mcphaSetBaselineLevel(long chan, long level)
-    throws IOException
-  {
-    sendCommand(MCPHA_COMMAND_SET_BASELINE_LEVEL, chan, level);
-  }
-
-  /**
-   * Set PHA delay
-   * 
-   * @param chan
-   * @param delay
-   * @throws java.io.IOException 
-   */
-  synchronized public static void mcphaSetPhaDelay(long chan, long delay)
-    throws IOException
-  {
-    sendCommand(MCPHA_COMMAND_SET_PHA_DELAY, chan, delay);
-  }
-
-  /**
-   * Set PHA min threshold
-   * 
-   * @param chan
-   * @param threshold
-   * @throws java.io.IOException 
-   */
-  synchronized public static void mcphaSetPhaMinThreshold(long chan, long threshold)
-    throws IOException
-  {
-    sendCommand(MCPHA_COMMAND_SET_PHA_MIN_THRESHOLD, chan, threshold);
-  }
-
-  /**
-   * Set PHA max threshold
-   * 
-   * @param chan
-   * @param threshold
-   * @throws java.io.IOException 
-   */
-  synchronized public static void mcphaSetPhaMaxThreshold(long chan, long threshold)
-    throws IOException
-  {
-    sendCommand(MCPHA_COMMAND_SET_PHA_MAX_THRESHOLD, chan, threshold);
+    replay.start();
   }
-
+  
   /**
-   * Reset timer
    * 
-   * @param chan 
-   * @throws java.io.IOException 
+   * @param user 
    */
-  synchronized public static void mcphaResetTimer(long chan)
-    throws IOException
+  public static void stopReplay(Session user)
   {
-    sendCommand(MCPHA_COMMAND_RESET_TIMER, chan, 0L);
+    SpectrumReplay replay = replays.get(user);
+    if (replay != null)
+    {
+      replay.cancel();
+    }
   }
   
   /**
-   * Set timer value
+   * Called by a replay when it has stopped.
    * 
-   * @param chan
-   * @param value
-   * @throws java.io.IOException 
+   * @param user
+   * @param replay 
    */
-  synchronized public static void mcphaSetTimerValue(long chan, long value)
-    throws IOException
+  static void replayStopped(Session user, SpectrumReplay replay)
   {
-    sendCommand(MCPHA_COMMAND_SET_TIMER_VALUE, chan, value);
+    replays.remove(user, replay);
   }
-
+  
   /**
-   * Set timer mode, 0 for stop and 1 for running
+   * Sends a message from one user to all users, along with a list
+   * of current usernames
    * 
-   * @param chan
-   * @param mode
-   * @throws java.io.IOException 
+   * @param sender
+   * @param message 
    */
-  synchronized public static void mcphaSetTimerMode(long chan, long mode)
-    throws IOException
+  public static void broadcastMessage(String sender, String message)
   {
-    sendCommand(MCPHA_COMMAND_SET_TIMER_MODE, chan, mode);
+    userUsernameMap.keySet().stream().filter(Session::isOpen).forEach(session ->
+    {
+//      getSendQueue(session).offer(PushFrame.text(String.valueOf(new JSONObject()
+//        .put("userMessage", createHtmlMessageFromSender(sender, message))
+//        .put("userlist", userUsernameMap.values())
+//      )));
+      getSendQueue(session).offer(PushFrame.text("sender="+sender+", message="+message));
+    });
   }
-
+  
   /**
-   * Get timer value in seconds which is derived from the 64-bit unsigned
-   * integer value returned from the server, that is the number of counts
-   * at 125MHz from the start of the acquisition.
    * 
-   * @param chan
-   * @return the timer value in seconds since the start of acquisition
-   * @throws java.io.IOException 
+   * @param user
+   * @return the queue of messages waiting to be sent to the user
    */
-  synchronized public static double mcphaGetTimerValue(long chan)
-    throws IOException
+  static SendQueue getSendQueue(Session user)
   {
-    sendCommand(MCPHA_COMMAND_READ_TIMER, chan, 0L);
-    
-    // read response
-    DataInputStream in = new DataInputStream(deviceSocket.getInputStream());
-    
-    long number  = Long.reverseBytes(in.readLong());
+    SendQueue queue = sendQueues.get(user);
+    if (queue != null)
+    {
+      return queue;
+    }
+    if (!user.isOpen())
+    {
+      // a session that has gone gets a closed queue of its own, rather
+      // than one that would never be removed
+      queue = new SendQueue(user);
+      queue.close();
+      return queue;
+    }
 
-    return (double)number * TIME_PER_TICK; 
+    return sendQueues.computeIfAbsent(user, SendQueue::new);
   }
-
-  /**
-   * Set number of samples to skip before triggering.
-   * 
-   * @param samples
-   * @throws java.io.IOException 
-   */
-  synchronized public static void mcphaSetNumberOfSamplesBeforeTrigger(long samples)
-    throws IOException
-  {
-    sendCommand(MCPHA_COMMAND_SET_NUMBER_OF_SAMPLES_BEFORE_TRIGGER, 0L, samples);
-  }
-
+  
   /**
-   * Set total number of samples to acquire.
    * 
-   * @param samples
-   * @throws java.io.IOException 
+   * @param dest
+   * @param json
+   * @throws IOException 
    */
-  synchronized public static void mcphaSetTotalNumberOfSamplesToAcquire(long samples)
+  public static void sendJSONObjectMessage(Session dest, JSONObject json)
     throws IOException
   {
-    sendCommand(MCPHA_COMMAND_SET_TOTAL_NUMBER_OF_SAMPLES_TO_ACQUIRE, 0L, samples);
+    sendJSONTextMessage(dest, json.toString());
   }
-
+  
   /**
-   * Start oscilloscope.
+   * Queue a text message, which is never dropped, to be sent to the user.
    * 
-   * @throws java.io.IOException 
+   * @param dest
+   * @param json
+   * @throws IOException 
    */
-  synchronized public static void mcphaStartOscilloscope()
+  public static void sendJSONTextMessage(Session dest, String json)
     throws IOException
   {
-    sendCommand(MCPHA_COMMAND_START_OSCILLOSCOPE, 0L, 0L);
+    if (dest.isOpen())
+    {
+      getSendQueue(dest).offer(PushFrame.text(json));
+    }
   }
-
+  
   /**
-   * Return the status of the oscilloscope.
+   * Queue a binary message, which is never dropped, to be sent to the
+   * user.
    * 
-   * @return the status of the oscilloscope
-   * @throws java.io.IOException 
+   * @param dest
+   * @param data
+   * @throws IOException 
    */
-  synchronized public static int mcphaReadOscilloscopeStatus()
+  public static void sendBinaryMessage(Session dest, ByteBuffer data)
     throws IOException
   {
-    sendCommand(MCPHA_COMMAND_READ_OSCILLOSCOPE_STATUS, 0L, 4L);
-    
-    // read response
-    DataInputStream in = new DataInputStream(deviceSocket.getInputStream());
-    
-    return Integer.reverseBytes(in.readInt());
+    if (dest.isOpen())
+    {
+      getSendQueue(dest).offer(PushFrame.binary(data));
+    }
   }
 
   /**
-   * Get histogram data
    * 
-   * @param chan
    * @return 
-   * @throws java.io.IOException 
    */
-  synchronized public static IntBuffer mcphaGetHistogramData(long chan)
-    throws IOException
-  {
-    sendCommand(MCPHA_COMMAND_READ_HISTOGRAM_DATA, chan, 0);
-
-    DataInputStream in = new DataInputStream(deviceSocket.getInputStream());
-    
-    ByteBuffer data = ByteBuffer.allocate(65536);
-    data.order(ByteOrder.nativeOrder());
-    in.readFully(data.array());
-
-    return data.asIntBuffer();
-  }
-
-  /**
-   * Get oscilloscope data which are 16-bit signed integer values.
-   * The channels are interleaved sample-by-sample (ch1, ch2, ch1, ch2, etc).
-   * 
-   * @return a ShortBuffer of channel data values.
-   * @throws java.io.IOException 
-   */
-  synchronized public static ShortBuffer mcphaGetOsilloscopeData()
-    throws IOException
+  static JSONObject createJSONResponseObject()
   {
-    sendCommand(MCPHA_COMMAND_READ_OSCILLOSCOPE_DATA, 0L, 0L);
-
-    DataInputStream in = new DataInputStream(deviceSocket.getInputStream());
-    
-    ByteBuffer data = ByteBuffer.allocate(65536);
-    data.order(ByteOrder.nativeOrder());
-    in.readFully(data.array());
-    
-    return data.asShortBuffer();
-  }
-
-  /**
-   * Send command to device
-   * 
-   * @param code
-   * @param chan
-   * @param data 
-   */
-  private static void sendCommand(long code, long chan, long data)
-    throws IOException
-  {
-    logDebugMessage("sendCommand - code="+code+", chan="+chan+", data="+data);
+    JSONObject json = new JSONObject();
+    json.put("type", "resp");
     
-    DataOutputStream out = new DataOutputStream(deviceSocket.getOutputStream());
-    long b = (long)(code << SHIFT_CODE) | (validateChannel(chan)  << SHIFT_CHAN) | data;
-    out.writeLong(Long.reverseBytes(b));
+    return json;
   }
   
   /**
+   * Select whether histogram data is pushed to the user as binary frames
+   * (see {@link BinaryFrame}) or as JSON text messages. Enabling binary
+   * mode always starts the user off with a full keyframe.
    * 
-   * @param chan
-   * @return 
+   * @param user
+   * @param state
+   * @throws IOException 
    */
-  private static long validateChannel(long chan)
+  public static void setBinaryMode(Session user, boolean state)
+    throws IOException
   {
-    if (chan < 0)
+    if (state)
     {
-      return 0;
-    } else if (chan > 1)
+      binarySessions.add(user);
+    }
+    else
     {
-      return 1;
+      binarySessions.remove(user);
     }
-    
-    return chan;
+    devices.values().forEach(device -> device.resetHistogramEncoder(user));
+
+    JSONObject json = createJSONResponseObject();
+    json.put("command", "set_binary_mode");
+    json.put("message", "");
+    json.put("state", state ? 1 : 0);
+    json.put("status", 0);
+    sendJSONObjectMessage(user, json);
   }
 }
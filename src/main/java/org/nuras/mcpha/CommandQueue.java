@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * The commands waiting to be run for one session. They are run on the
+ * shared worker pool, one at a time and in the order they arrived, so a
+ * slow command never holds up the websocket's I/O thread and a session's
+ * commands never overtake each other.
+ *
+ * A command queued with a key replaces the waiting command with the same
+ * key, so a burst of commands that each set the same thing, such as an
+ * ROI being dragged, only sets it once it has caught up. The waiting
+ * command is dropped and the new one queued at the end, so it still runs
+ * after every command that arrived before it.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class CommandQueue implements Runnable
+{
+  // commands that may be waiting before more are refused
+  public static final int MAX_QUEUED = 256;
+
+  // commands run before the worker is handed back to other sessions
+  private static final int BATCH = 16;
+
+  private static class Entry
+  {
+    final String key;
+    final Runnable task;
+
+    Entry(String key, Runnable task)
+    {
+      this.key = key;
+      this.task = task;
+    }
+  }
+
+  // guarded by this
+  private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+  // the queue has been handed to a worker
+  private boolean scheduled = false;
+
+  private boolean closed = false;
+
+  /**
+   * Queue a command.
+   *
+   * @param key the waiting command with this key is dropped, or null to
+   * drop nothing
+   * @param task
+   * @return false if too many commands are waiting
+   */
+  public boolean offer(String key, Runnable task)
+  {
+    synchronized (this)
+    {
+      if (closed)
+      {
+        return true;
+      }
+      if (key != null)
+      {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext())
+        {
+          if (key.equals(it.next().key))
+          {
+            it.remove();
+            break;
+          }
+        }
+      }
+      if (queue.size() >= MAX_QUEUED)
+      {
+        return false;
+      }
+      queue.add(new Entry(key, task));
+      if (scheduled)
+      {
+        return true;
+      }
+      scheduled = true;
+    }
+    Client.getWorkers().execute(this);
+
+    return true;
+  }
+
+  /**
+   * Drop the waiting commands and run no more.
+   */
+  synchronized public void close()
+  {
+    closed = true;
+    queue.clear();
+  }
+
+  @Override
+  public void run()
+  {
+    for (int n=0; n<BATCH; n++)
+    {
+      Entry e;
+      synchronized (this)
+      {
+        e = queue.poll();
+        if (e == null)
+        {
+          scheduled = false;
+          return;
+        }
+      }
+      e.task.run();
+    }
+
+    synchronized (this)
+    {
+      if (queue.isEmpty())
+      {
+        scheduled = false;
+        return;
+      }
+    }
+    Client.getWorkers().execute(this);
+  }
+}
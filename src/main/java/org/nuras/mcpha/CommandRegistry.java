@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import org.json.JSONObject;
+
+/**
+ * The websocket commands, by name. A message is parsed on the thread it
+ * arrives on, and its command is queued on the sender's
+ * {@link CommandQueue} to be run by a worker. A message is only echoed
+ * back to the sender if it has "echo": true.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class CommandRegistry
+{
+  /**
+   * Runs a command.
+   */
+  public interface Handler
+  {
+    /**
+     *
+     * @param user the sender
+     * @param device the connected device the command is for, or null
+     * @param request
+     * @throws IOException
+     */
+    void handle(Session user, DeviceConnection device, CommandRequest request)
+      throws IOException;
+  }
+
+  // the command fails unless its device is connected
+  public static final int DEVICE = 0x01;
+
+  // the sender is subscribed to the command's device, if it is connected
+  public static final int SUBSCRIBE = 0x02;
+
+  // a waiting command is replaced by a newer one for the same device,
+  // channel and name
+  public static final int LATEST_WINS = 0x04;
+
+  private static class Command
+  {
+    final int flags;
+    final Handler handler;
+
+    Command(int flags, Handler handler)
+    {
+      this.flags = flags;
+      this.handler = handler;
+    }
+  }
+
+  private final Map<String, Command> commands = new HashMap<>();
+
+  /**
+   *
+   * @param name
+   * @param flags DEVICE, SUBSCRIBE and LATEST_WINS, or 0
+   * @param handler
+   * @return this registry
+   */
+  public CommandRegistry register(String name, int flags, Handler handler)
+  {
+    commands.put(name, new Command(flags, handler));
+
+    return this;
+  }
+
+  /**
+   * Queue the command in the message to be run for the user.
+   *
+   * @param user
+   * @param message
+   */
+  public void dispatch(Session user, String message)
+  {
+    CommandRequest request;
+    try
+    {
+      request = CommandRequest.parse(message);
+      if (request.getBoolean("echo", false))
+      {
+        Client.sendJSONTextMessage(user, message);
+      }
+    }
+    catch (IOException ex)
+    {
+      sendError(user, null, ex);
+      return;
+    }
+
+    Command command = commands.get(request.getCommand());
+    if (command == null)
+    {
+      Client.logDebugMessage("Unknown command "+request.getCommand());
+      return;
+    }
+
+    String key = null;
+    if ((command.flags & LATEST_WINS) != 0)
+    {
+      key = request.getCommand()+"/"+request.getDeviceId()+"/"+
+        request.getString("chan", "0")+"/"+request.getString("name", "")+"/"+
+        request.getString("roi", "");
+    }
+    if (!Client.getCommandQueue(user).offer(key, () -> run(user, command, request)))
+    {
+      sendError(user, request.getCommand(), new IOException("Too many commands waiting"));
+    }
+  }
+
+  /**
+   *
+   * @param user
+   * @param command
+   * @param request
+   */
+  private static void run(Session user, Command command, CommandRequest request)
+  {
+    try
+    {
+      String deviceId = request.getDeviceId();
+      DeviceConnection device = Client.devices.get(deviceId);
+      if (device != null && (command.flags & SUBSCRIBE) != 0)
+      {
+        // anyone sending commands to a device is sent its data
+        device.subscribe(user);
+      }
+      if (device == null && (command.flags & DEVICE) != 0)
+      {
+        throw new IOException("Device "+deviceId+" not connected");
+      }
+      command.handler.handle(user, device, request);
+    }
+    catch (IOException ex)
+    {
+      sendError(user, request.getCommand(), ex);
+    }
+    catch (RuntimeException ex)
+    {
+      Logger.getLogger(CommandRegistry.class.getName()).log(Level.SEVERE,
+        request.getMessage(), ex);
+      sendError(user, request.getCommand(), ex);
+    }
+  }
+
+  /**
+   *
+   * @param user
+   * @param command
+   * @param ex
+   */
+  private static void sendError(Session user, String command, Exception ex)
+  {
+    JSONObject j = new JSONObject();
+    j.put("command", command);
+    j.put("message", ex.toString());
+    j.put("status", 1);
+    try
+    {
+      Client.sendJSONObjectMessage(user, j);
+    }
+    catch (IOException ex1)
+    {
+      Logger.getLogger(CommandRegistry.class.getName()).log(Level.SEVERE, null, ex1);
+    }
+  }
+}
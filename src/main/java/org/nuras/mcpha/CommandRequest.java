@@ -0,0 +1,530 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A websocket command: a flat JSON object of strings, numbers and
+ * literals. Parsing only records where each field is in the message, and
+ * a field is converted when a handler asks for it as the type it expects,
+ * so a command costs one pass over the text and no map or boxed numbers.
+ * Nested objects and arrays are skipped over and can only be read as
+ * text.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public final class CommandRequest
+{
+  private static final int STRING = 0;
+
+  private static final int NUMBER = 1;
+
+  private static final int LITERAL = 2;
+
+  private static final int OTHER = 3;
+
+  // fields of 5 ints each: name start and end, value start and end, and
+  // value type. Strings do not include their quotes.
+  private static final int FIELD = 5;
+
+  private final String message;
+
+  private int[] fields = new int[FIELD * 8];
+
+  private int count = 0;
+
+  private String command;
+
+  /**
+   *
+   * @param message
+   */
+  private CommandRequest(String message)
+  {
+    this.message = message;
+  }
+
+  /**
+   *
+   * @param message
+   * @return the parsed command
+   * @throws IOException if the message is not a JSON object with a command
+   */
+  public static CommandRequest parse(String message)
+    throws IOException
+  {
+    CommandRequest request = new CommandRequest(message);
+    request.parseObject();
+    request.command = request.getString("command");
+
+    return request;
+  }
+
+  /**
+   *
+   * @return the text the command was parsed from
+   */
+  public String getMessage()
+  {
+    return message;
+  }
+
+  /**
+   *
+   * @return the command name
+   */
+  public String getCommand()
+  {
+    return command;
+  }
+
+  /**
+   *
+   * @return the id of the device the command is for
+   */
+  public String getDeviceId()
+  {
+    return getString("device", Client.DEFAULT_DEVICE);
+  }
+
+  /**
+   *
+   * @param name
+   * @return true if the command has the field
+   */
+  public boolean has(String name)
+  {
+    return find(name) >= 0;
+  }
+
+  /**
+   *
+   * @param name
+   * @return the field as a string, or the text of a value that is not a
+   * string
+   * @throws IOException if there is no such field
+   */
+  public String getString(String name)
+    throws IOException
+  {
+    int f = find(name);
+    if (f < 0)
+    {
+      throw new IOException("Missing field "+name);
+    }
+
+    return string(f);
+  }
+
+  /**
+   *
+   * @param name
+   * @param value returned if there is no such field
+   * @return the field as a string
+   */
+  public String getString(String name, String value)
+  {
+    int f = find(name);
+
+    return f >= 0 ? string(f) : value;
+  }
+
+  /**
+   *
+   * @param name
+   * @return the field, which must be a whole number
+   * @throws IOException if there is no such field, or it is not a whole
+   * number
+   */
+  public long getLong(String name)
+    throws IOException
+  {
+    int f = find(name);
+    if (f < 0)
+    {
+      throw new IOException("Missing field "+name);
+    }
+
+    return number(f, name);
+  }
+
+  /**
+   *
+   * @param name
+   * @param value returned if there is no such field
+   * @return the field, which must be a whole number
+   * @throws IOException if the field is not a whole number
+   */
+  public long getLong(String name, long value)
+    throws IOException
+  {
+    int f = find(name);
+
+    return f >= 0 ? number(f, name) : value;
+  }
+
+  /**
+   *
+   * @param name
+   * @return the field, which must be a number
+   * @throws IOException if there is no such field, or it is not a number
+   */
+  public double getDouble(String name)
+    throws IOException
+  {
+    int f = find(name);
+    if (f < 0)
+    {
+      throw new IOException("Missing field "+name);
+    }
+
+    return decimal(f, name);
+  }
+
+  /**
+   *
+   * @param name
+   * @param value returned if there is no such field
+   * @return the field, which must be a number
+   * @throws IOException if the field is not a number
+   */
+  public double getDouble(String name, double value)
+    throws IOException
+  {
+    int f = find(name);
+
+    return f >= 0 ? decimal(f, name) : value;
+  }
+
+  /**
+   *
+   * @param name
+   * @param value returned if there is no such field
+   * @return true if the field is true or a number other than 0
+   */
+  public boolean getBoolean(String name, boolean value)
+  {
+    int f = find(name);
+    if (f < 0)
+    {
+      return value;
+    }
+    int start = fields[f + 2];
+    switch (fields[f + 4])
+    {
+      case LITERAL:
+        return message.charAt(start) == 't';
+      case NUMBER:
+        return !(message.charAt(start) == '0' && fields[f + 3] == start + 1);
+      default:
+        return value;
+    }
+  }
+
+  /**
+   *
+   * @param name
+   * @return the offset in fields of the last field with the name, or -1
+   */
+  private int find(String name)
+  {
+    int n = name.length();
+    for (int f=FIELD*(count-1); f>=0; f-=FIELD)
+    {
+      int start = fields[f];
+      if (fields[f + 1] - start == n && message.regionMatches(start, name, 0, n))
+      {
+        return f;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   *
+   * @return the field as a string
+   */
+  private String string(int f)
+  {
+    int start = fields[f + 2], end = fields[f + 3];
+    int escape = message.indexOf('\\', start);
+    if (fields[f + 4] != STRING || escape < 0 || escape >= end)
+    {
+      return message.substring(start, end);
+    }
+
+    StringBuilder s = new StringBuilder(end - start);
+    for (int i=start; i<end; i++)
+    {
+      char c = message.charAt(i);
+      if (c != '\\')
+      {
+        s.append(c);
+        continue;
+      }
+      c = message.charAt(++i);
+      switch (c)
+      {
+        case 'b':
+          s.append('\b');
+          break;
+        case 'f':
+          s.append('\f');
+          break;
+        case 'n':
+          s.append('\n');
+          break;
+        case 'r':
+          s.append('\r');
+          break;
+        case 't':
+          s.append('\t');
+          break;
+        case 'u':
+          s.append((char)Integer.parseInt(message.substring(i + 1, i + 5), 16));
+          i += 4;
+          break;
+        default:
+          s.append(c);
+      }
+    }
+
+    return s.toString();
+  }
+
+  /**
+   *
+   * @return the field as a whole number
+   */
+  private long number(int f, String name)
+    throws IOException
+  {
+    if (fields[f + 4] != NUMBER)
+    {
+      throw new IOException("Field "+name+" is not a number");
+    }
+    int start = fields[f + 2], end = fields[f + 3];
+    boolean negative = message.charAt(start) == '-';
+    long v = 0;
+    for (int i=negative?start+1:start; i<end; i++)
+    {
+      char c = message.charAt(i);
+      if (c < '0' || c > '9' || end - start > 18)
+      {
+        // a fraction, an exponent or too many digits
+        double d = decimal(f, name);
+        if (d != Math.rint(d) || Math.abs(d) > Long.MAX_VALUE)
+        {
+          throw new IOException("Field "+name+" is not a whole number");
+        }
+        return (long)d;
+      }
+      v = 10 * v + (c - '0');
+    }
+
+    return negative ? -v : v;
+  }
+
+  /**
+   *
+   * @return the field as a number
+   */
+  private double decimal(int f, String name)
+    throws IOException
+  {
+    if (fields[f + 4] != NUMBER)
+    {
+      throw new IOException("Field "+name+" is not a number");
+    }
+    try
+    {
+      return Double.parseDouble(message.substring(fields[f + 2], fields[f + 3]));
+    }
+    catch (NumberFormatException ex)
+    {
+      throw new IOException("Field "+name+" is not a number");
+    }
+  }
+
+  /**
+   * Record where each field of the message is.
+   *
+   * @throws IOException if the message is not a JSON object
+   */
+  private void parseObject()
+    throws IOException
+  {
+    int i = skipSpace(0);
+    expect(i, '{');
+    i = skipSpace(i + 1);
+    if (at(i) == '}')
+    {
+      return;
+    }
+    while (true)
+    {
+      expect(i, '"');
+      int nameStart = i + 1;
+      int nameEnd = endOfString(nameStart);
+      i = skipSpace(nameEnd + 1);
+      expect(i, ':');
+      i = skipSpace(i + 1);
+
+      int valueStart = i, valueEnd, type;
+      char c = at(i);
+      if (c == '"')
+      {
+        valueStart = i + 1;
+        valueEnd = endOfString(valueStart);
+        i = valueEnd + 1;
+        type = STRING;
+      }
+      else if (c == '-' || (c >= '0' && c <= '9'))
+      {
+        while (i < message.length() && "+-.eE0123456789".indexOf(message.charAt(i)) >= 0)
+        {
+          i++;
+        }
+        valueEnd = i;
+        type = NUMBER;
+      }
+      else if (c == '{' || c == '[')
+      {
+        i = endOfValue(i);
+        valueEnd = i;
+        type = OTHER;
+      }
+      else if (message.startsWith("true", i) || message.startsWith("null", i))
+      {
+        i += 4;
+        valueEnd = i;
+        type = LITERAL;
+      }
+      else if (message.startsWith("false", i))
+      {
+        i += 5;
+        valueEnd = i;
+        type = LITERAL;
+      }
+      else
+      {
+        throw malformed(i);
+      }
+
+      if (FIELD * (count + 1) > fields.length)
+      {
+        fields = Arrays.copyOf(fields, 2 * fields.length);
+      }
+      int f = FIELD * count++;
+      fields[f] = nameStart;
+      fields[f + 1] = nameEnd;
+      fields[f + 2] = valueStart;
+      fields[f + 3] = valueEnd;
+      fields[f + 4] = type;
+
+      i = skipSpace(i);
+      if (at(i) == '}')
+      {
+        return;
+      }
+      expect(i, ',');
+      i = skipSpace(i + 1);
+    }
+  }
+
+  /**
+   *
+   * @param i just past the opening quote
+   * @return the index of the closing quote
+   */
+  private int endOfString(int i)
+    throws IOException
+  {
+    while (i < message.length())
+    {
+      char c = message.charAt(i);
+      if (c == '"')
+      {
+        return i;
+      }
+      i += c == '\\' ? 2 : 1;
+    }
+
+    throw malformed(i);
+  }
+
+  /**
+   *
+   * @param i the opening bracket of a nested object or array
+   * @return the index just past its closing bracket
+   */
+  private int endOfValue(int i)
+    throws IOException
+  {
+    int depth = 0;
+    while (i < message.length())
+    {
+      char c = message.charAt(i);
+      if (c == '"')
+      {
+        i = endOfString(i + 1);
+      }
+      else if (c == '{' || c == '[')
+      {
+        depth++;
+      }
+      else if ((c == '}' || c == ']') && --depth == 0)
+      {
+        return i + 1;
+      }
+      i++;
+    }
+
+    throw malformed(i);
+  }
+
+  private int skipSpace(int i)
+  {
+    while (i < message.length() && message.charAt(i) <= ' ')
+    {
+      i++;
+    }
+
+    return i;
+  }
+
+  private char at(int i)
+  {
+    return i < message.length() ? message.charAt(i) : 0;
+  }
+
+  private void expect(int i, char c)
+    throws IOException
+  {
+    if (at(i) != c)
+    {
+      throw malformed(i);
+    }
+  }
+
+  private IOException malformed(int i)
+  {
+    return new IOException("Malformed command at character "+i);
+  }
+}
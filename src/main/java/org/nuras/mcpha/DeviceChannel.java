@@ -0,0 +1,567 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking link to a device, serviced by one of the selector threads
+ * of a {@link DeviceIOEngine}. Responses are matched to commands in the
+ * order the commands were written, since the device answers them in
+ * order.
+ *
+ * Commands are queued by priority class: control commands, such as
+ * setting a threshold, are written ahead of histogram poll reads, which
+ * are written ahead of bulk oscilloscope reads. Within a class commands
+ * are written in the order they were queued. Only
+ * {@link #MAX_READS_IN_FLIGHT} poll and bulk reads are let out to the
+ * device at a time, so a control command never waits for more than one
+ * selector pass and those responses.
+ *
+ * Whatever is queued when the socket is ready is written at once, so
+ * commands issued back to back share a write, and several reads can be
+ * in flight. Between {@link #hold()} and {@link #flush()} commands are only
+ * queued, for a group of commands to go out together.
+ *
+ * The queues are array based and commands are pooled, so once the pool
+ * has warmed up sending commands and reading responses does not allocate,
+ * other than the selector's own entry for each key it selects.
+ * The methods with package access are only called from the selector
+ * thread.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class DeviceChannel
+{
+  // priority classes, highest first
+  public static final int CONTROL = 0;
+
+  public static final int POLL = 1;
+
+  public static final int BULK = 2;
+
+  private static final int CLASSES = 3;
+
+  // poll and bulk reads written to the device that may still be waiting
+  // for their responses
+  public static final int MAX_READS_IN_FLIGHT = 4;
+
+  // most command frames gathered into one write
+  private static final int MAX_BATCH = 64;
+
+  private final String id;
+
+  private final SocketChannel channel;
+
+  private final DeviceIOEngine.SelectorLoop loop;
+
+  private final Object writeLock = new Object();
+
+  // one per priority class, guarded by writeLock
+  private final List<ArrayDeque<DeviceCommand>> writeQueues = newQueues();
+
+  // commands in the write queues, guarded by writeLock
+  private int queued = 0;
+
+  // only used by the selector thread
+  private final ArrayDeque<DeviceCommand> readQueue = new ArrayDeque<>();
+
+  // guarded by itself
+  private final ArrayDeque<DeviceCommand> pool = new ArrayDeque<>();
+
+  // used to drain bytes that no command is waiting for
+  private final ByteBuffer discard = ByteBuffer.allocateDirect(256);
+
+  // the commands being written and their frames, only used by the
+  // selector thread
+  private final DeviceCommand[] batch = new DeviceCommand[MAX_BATCH];
+
+  private final ByteBuffer[] frames = new ByteBuffer[MAX_BATCH];
+
+  // a command whose frame was only partly written, which has to be
+  // finished before anything else goes out. Only used by the selector
+  // thread.
+  private DeviceCommand partial = null;
+
+  // guarded by writeLock: the number of holds not yet flushed, and
+  // whether commands were queued without the selector being told
+  private int held = 0;
+
+  private boolean deferred = false;
+
+  private SelectionKey key = null;
+
+  // set when the selector thread needs to look at this channel
+  volatile boolean updatePending = false;
+
+  private volatile boolean closed = false;
+
+  /**
+   *
+   * @param id
+   * @param channel a connected, non-blocking socket channel
+   * @param loop
+   */
+  DeviceChannel(String id, SocketChannel channel, DeviceIOEngine.SelectorLoop loop)
+  {
+    this.id = id;
+    this.channel = channel;
+    this.loop = loop;
+  }
+
+  /**
+   * Queue a control command that has no response.
+   *
+   * @param command the encoded 64-bit command word
+   * @throws IOException if the channel is closed
+   */
+  public void send(long command)
+    throws IOException
+  {
+    submit(acquire(command, null, CONTROL));
+  }
+
+  /**
+   * Queue a command whose response is read into the given buffer. The
+   * returned command must be awaited and then released.
+   *
+   * @param command the encoded 64-bit command word
+   * @param response buffer to read the reply into
+   * @param priority CONTROL, POLL or BULK
+   * @return the queued command
+   * @throws IOException if the channel is closed
+   */
+  public DeviceCommand request(long command, ByteBuffer response, int priority)
+    throws IOException
+  {
+    DeviceCommand cmd = acquire(command, response, priority);
+    submit(cmd);
+
+    return cmd;
+  }
+
+  /**
+   * Queue commands without writing them until {@link #flush()} is called.
+   * Holds nest. Nothing queued while held is written, so a response
+   * must not be awaited until the hold is flushed.
+   */
+  public void hold()
+  {
+    synchronized (writeLock)
+    {
+      held++;
+    }
+  }
+
+  /**
+   * Release a hold, writing everything queued since once no hold is left.
+   */
+  public void flush()
+  {
+    boolean wake;
+    synchronized (writeLock)
+    {
+      held = Math.max(0, held - 1);
+      wake = held == 0 && deferred;
+      if (wake)
+      {
+        deferred = false;
+      }
+    }
+    if (wake)
+    {
+      loop.update(this);
+    }
+  }
+
+  /**
+   * Return a command obtained from request() to the pool once it has
+   * completed.
+   *
+   * @param cmd
+   */
+  public void release(DeviceCommand cmd)
+  {
+    synchronized (pool)
+    {
+      pool.push(cmd);
+    }
+  }
+
+  /**
+   *
+   * @return true if the channel has not been closed
+   */
+  public boolean isOpen()
+  {
+    return !closed && channel.isOpen();
+  }
+
+  /**
+   * Close the channel. Commands that have not completed are failed.
+   */
+  public void close()
+  {
+    closed = true;
+    try
+    {
+      channel.close();
+    }
+    catch (IOException ex)
+    {
+      Logger.getLogger(DeviceChannel.class.getName()).log(Level.SEVERE, null, ex);
+    }
+    loop.update(this);
+  }
+
+  /**
+   *
+   * @param command
+   * @param response
+   * @param priority
+   * @return a pooled command ready to be queued
+   */
+  private DeviceCommand acquire(long command, ByteBuffer response, int priority)
+  {
+    DeviceCommand cmd;
+    synchronized (pool)
+    {
+      cmd = pool.poll();
+    }
+    if (cmd == null)
+    {
+      cmd = new DeviceCommand();
+    }
+    cmd.prepare(command, response, priority);
+
+    return cmd;
+  }
+
+  /**
+   *
+   * @param cmd
+   * @throws IOException
+   */
+  private void submit(DeviceCommand cmd)
+    throws IOException
+  {
+    if (closed)
+    {
+      throw new ClosedChannelException();
+    }
+
+    boolean wake;
+    synchronized (writeLock)
+    {
+      writeQueues.get(cmd.priority).add(cmd);
+      queued++;
+      if (held > 0)
+      {
+        deferred = true;
+        return;
+      }
+      // if others are waiting the selector already knows to write, and
+      // picks this one up with them, unless they are reads held back for
+      // responses to come in
+      wake = queued == 1 || deferred || cmd.priority == CONTROL;
+      deferred = false;
+    }
+    if (wake)
+    {
+      loop.update(this);
+    }
+  }
+
+  /**
+   * Register with the selector or update the interest set to match
+   * whether there is anything waiting to be written.
+   *
+   * @param selector
+   * @return false if the channel is closed and no longer needs servicing
+   */
+  boolean updateInterest(Selector selector)
+  {
+    if (closed)
+    {
+      fail(new ClosedChannelException());
+      return false;
+    }
+
+    try
+    {
+      if (key == null)
+      {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+      }
+      boolean writing;
+      synchronized (writeLock)
+      {
+        writing = queued > 0 || partial != null;
+      }
+      key.interestOps(writing ?
+        SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+    catch (IOException | RuntimeException ex)
+    {
+      fail(ex instanceof IOException ? (IOException)ex : new IOException(ex));
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Write queued command frames, highest priority first, until there are
+   * none that may go out or the socket send buffer is full. The frames are
+   * gathered into a single write.
+   *
+   * @throws IOException
+   */
+  void handleWrite()
+    throws IOException
+  {
+    while (true)
+    {
+      int count = 0;
+      int reads = readQueue.size();
+      if (partial != null)
+      {
+        batch[count] = partial;
+        frames[count++] = partial.frame;
+        reads += partial.response != null ? 1 : 0;
+        partial = null;
+      }
+      synchronized (writeLock)
+      {
+        for (int priority=CONTROL; priority<CLASSES; priority++)
+        {
+          DeviceCommand cmd;
+          while (count < MAX_BATCH && (cmd = writeQueues.get(priority).peek()) != null)
+          {
+            if (cmd.response != null)
+            {
+              if (priority != CONTROL && reads >= MAX_READS_IN_FLIGHT)
+              {
+                // handleRead() restores the write interest as responses
+                // come in
+                break;
+              }
+              reads++;
+            }
+            writeQueues.get(priority).poll();
+            queued--;
+            batch[count] = cmd;
+            frames[count++] = cmd.frame;
+          }
+        }
+        if (count == 0)
+        {
+          // anything submitted from now on calls loop.update() which
+          // restores the write interest
+          key.interestOps(SelectionKey.OP_READ);
+          return;
+        }
+      }
+
+      int written = 0;
+      try
+      {
+        Metrics.deviceBytesWritten(channel.write(frames, 0, count));
+        Metrics.deviceWrite();
+        long now = System.nanoTime();
+        while (written < count && !frames[written].hasRemaining())
+        {
+          DeviceCommand cmd = batch[written++];
+          Metrics.commandQueued(cmd.priority, now - cmd.queuedAt);
+          if (cmd.response == null)
+          {
+            cmd.complete();
+            release(cmd);
+          }
+          else
+          {
+            readQueue.add(cmd);
+          }
+        }
+      }
+      finally
+      {
+        int i = written;
+        if (i < count && frames[i].position() > 0)
+        {
+          partial = batch[i++];
+        }
+        if (i < count)
+        {
+          // put back what did not go out, ahead of anything queued since
+          synchronized (writeLock)
+          {
+            for (int j=count-1; j>=i; j--)
+            {
+              writeQueues.get(batch[j].priority).addFirst(batch[j]);
+            }
+            queued += count - i;
+          }
+        }
+        Arrays.fill(batch, 0, count, null);
+        Arrays.fill(frames, 0, count, null);
+      }
+
+      if (written < count)
+      {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Read whatever the device has sent into the buffers of the commands
+   * waiting for a response, completing each one as its buffer fills.
+   *
+   * @throws IOException
+   */
+  void handleRead()
+    throws IOException
+  {
+    while (true)
+    {
+      DeviceCommand cmd = readQueue.peek();
+      ByteBuffer dst = cmd != null ? cmd.response : discard;
+      if (cmd == null)
+      {
+        discard.clear();
+      }
+
+      int n = channel.read(dst);
+      if (n < 0)
+      {
+        throw new EOFException("Device "+id+" closed the connection");
+      }
+      Metrics.deviceBytesRead(n);
+
+      if (cmd == null)
+      {
+        if (n > 0)
+        {
+          Logger.getLogger(DeviceChannel.class.getName()).log(Level.WARNING,
+            "Device {0} sent {1} unexpected bytes", new Object[]{id, n});
+          continue;
+        }
+        return;
+      }
+
+      if (dst.hasRemaining())
+      {
+        return;
+      }
+
+      readQueue.poll();
+      dst.flip();
+      cmd.complete();
+
+      if (readQueue.size() < MAX_READS_IN_FLIGHT)
+      {
+        synchronized (writeLock)
+        {
+          if (queued > 0)
+          {
+            // reads may have been held back until now
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Close the channel and fail every outstanding command.
+   *
+   * @param ex
+   */
+  void fail(IOException ex)
+  {
+    closed = true;
+    if (key != null)
+    {
+      key.cancel();
+    }
+    try
+    {
+      channel.close();
+    }
+    catch (IOException ex1)
+    {
+      Logger.getLogger(DeviceChannel.class.getName()).log(Level.SEVERE, null, ex1);
+    }
+
+    DeviceCommand cmd;
+    if (partial != null)
+    {
+      partial.fail(ex);
+      partial = null;
+    }
+    while ((cmd = readQueue.poll()) != null)
+    {
+      cmd.fail(ex);
+    }
+    for (int priority=CONTROL; priority<CLASSES; priority++)
+    {
+      while (true)
+      {
+        synchronized (writeLock)
+        {
+          cmd = writeQueues.get(priority).poll();
+          if (cmd != null)
+          {
+            queued--;
+          }
+        }
+        if (cmd == null)
+        {
+          break;
+        }
+        cmd.fail(ex);
+      }
+    }
+  }
+
+  /**
+   *
+   * @return an empty write queue for each priority class
+   */
+  private static List<ArrayDeque<DeviceCommand>> newQueues()
+  {
+    List<ArrayDeque<DeviceCommand>> queues = new ArrayList<>(CLASSES);
+    for (int i=0; i<CLASSES; i++)
+    {
+      queues.add(new ArrayDeque<>());
+    }
+
+    return queues;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A command queued on a {@link DeviceChannel}. The 8-byte command frame is
+ * written to the device and, if the command has a response, the device's
+ * reply is read into the response buffer until it is full.
+ *
+ * Commands are pooled by their channel and reused, frame and all, so that
+ * a steady stream of commands does not allocate. A command obtained from
+ * {@link DeviceChannel#request(long, ByteBuffer, int)} must be handed back
+ * with {@link DeviceChannel#release(DeviceCommand)} once it has been
+ * awaited.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class DeviceCommand
+{
+  final ByteBuffer frame = ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN);
+
+  ByteBuffer response = null;
+
+  // DeviceChannel.CONTROL, POLL or BULK
+  int priority;
+
+  // System.nanoTime() when the command was queued
+  long queuedAt;
+
+  private boolean done = false;
+
+  private IOException failure = null;
+
+  /**
+   * Make the command ready to be queued.
+   *
+   * @param command the encoded 64-bit command word
+   * @param response buffer to read the reply into, or null if there is none
+   * @param priority the command's priority class
+   */
+  synchronized void prepare(long command, ByteBuffer response, int priority)
+  {
+    frame.clear();
+    frame.putLong(command);
+    frame.flip();
+    this.response = response;
+    this.priority = priority;
+    queuedAt = System.nanoTime();
+    done = false;
+    failure = null;
+  }
+
+  /**
+   *
+   */
+  synchronized void complete()
+  {
+    done = true;
+    notifyAll();
+  }
+
+  /**
+   *
+   * @param ex
+   */
+  synchronized void fail(IOException ex)
+  {
+    failure = ex;
+    done = true;
+    notifyAll();
+  }
+
+  /**
+   * Wait for the command to complete.
+   *
+   * @param timeout maximum number of milliseconds to wait
+   * @return the response buffer, positioned at 0, or null if the command
+   * has no response
+   * @throws SocketTimeoutException if the command did not complete in time
+   * @throws IOException if the command failed
+   */
+  synchronized public ByteBuffer await(long timeout)
+    throws IOException
+  {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (!done)
+    {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0)
+      {
+        throw new SocketTimeoutException("Device did not respond within "+timeout+"ms");
+      }
+      try
+      {
+        wait(remaining);
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+
+    if (failure != null)
+    {
+      throw failure;
+    }
+
+    return response;
+  }
+}
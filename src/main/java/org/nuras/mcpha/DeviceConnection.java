@@ -0,0 +1,2163 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import static org.nuras.mcpha.Client.*;
+
+/**
+ * A connection to a single Red Pitaya MCPHA device. Each connection owns
+ * its device channel, the histograms and ROI's of both ADC channels and
+ * the acquisition task, and all device access is serialised on the
+ * connection rather than on the whole server, so that any number of
+ * devices can be driven from one process. The exception is the commands
+ * that only set something on the device, which go straight to the device
+ * channel as control commands, so that a setting changed live takes
+ * effect within milliseconds rather than after the poll or capture in
+ * progress. Instances are created and looked up through
+ * {@link Client#getDevice(String)}.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class DeviceConnection
+{
+  // milliseconds to wait for the device to answer a read command. Reads
+  // are awaited on the shared scheduler's threads, so a board that does
+  // not answer in this time is dropped rather than left to hold a thread
+  // and the connection's lock.
+  private static final long RESPONSE_TIMEOUT = 5000L;
+
+  private static final Set<Session> NO_SESSIONS = Collections.emptySet();
+
+  // mask of both ADC channels
+  public static final int ALL_CHANNELS = 0x03;
+
+  private final String id;
+
+  // small number identifying the device in binary frames
+  private final int number;
+
+  private volatile DeviceChannel deviceChannel = null;
+
+  // response buffers, reused for every read. The histogram and
+  // oscilloscope buffers are double buffered so that the last snapshot
+  // can still be read while the next one fills.
+  private final ByteBuffer timerBuffer = ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN);
+
+  // the reads of a poll are all in flight at once, so each channel's timer
+  // is read into a buffer of its own
+  private final ByteBuffer[] pollTimerBuffers = new ByteBuffer[]{
+    ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN),
+    ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN)};
+
+  private final DeviceCommand[] pollReads = new DeviceCommand[4];
+
+  private final ByteBuffer statusBuffer = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+
+  private final ByteBuffer[] oscilloscopeBuffers = new ByteBuffer[2];
+
+  private final ShortBuffer[] oscilloscopeViews = new ShortBuffer[2];
+
+  private int oscilloscopeFront = 0;
+
+  // one per ADC channel
+  final HistogramChannel[] channels = new HistogramChannel[]{
+    new HistogramChannel(0), new HistogramChannel(1)};
+
+  // the frames encoded by a push, kept between pushes so that a poll with
+  // nothing to send allocates nothing; cleared at the start of each push
+  private final ByteBuffer[] pushDeltas = new ByteBuffer[channels.length];
+
+  private final ByteBuffer[] pushKeyframes = new ByteBuffer[channels.length];
+
+  // binary messages keyed by which of the channels are sent as keyframes
+  private final PushFrame[] pushBinary = new PushFrame[1 << channels.length];
+
+  private AcquisitionUpdateTask acquisitionUpdateTask = null;
+
+  private int histogramSequence = 0;
+
+  // time spent queueing frames for sessions, for the push metrics
+  private long sendNanos = 0;
+
+  // sessions that are sent the data read from this device
+  private final Set<Session> subscribers = ConcurrentHashMap.newKeySet();
+
+  // part of the histogram each subscriber is looking at, if not all of it
+  private final Map<Session, HistogramView> sessionViews = new ConcurrentHashMap<>();
+
+  private OscilloscopeStream oscilloscopeStream = null;
+
+  // true from the start of a one-shot capture until its trace is sent, as
+  // arming the scope again would reset it
+  private boolean oscilloscopeCapturing = false;
+
+  // JSON messages too large to build from JSONObjects, the first guarded by
+  // this and the second by itself
+  private final JsonWriter jsonWriter = new JsonWriter(4 * 65536);
+
+  private final JsonWriter oscilloscopeWriter = new JsonWriter(4 * 65536);
+
+  // send queue slots of the frames that only the latest of is wanted
+  private final String histogramSlot;
+
+  private final String roiSlot;
+
+  private final String peakSlot;
+
+  private final String oscilloscopeSlot;
+
+  /**
+   *
+   * @param id
+   * @param number
+   */
+  DeviceConnection(String id, int number)
+  {
+    this.id = id;
+    this.number = number;
+    this.histogramSlot = id + "/histogram";
+    this.roiSlot = id + "/roi";
+    this.peakSlot = id + "/peaks";
+    this.oscilloscopeSlot = id + "/oscilloscope";
+
+    for (int i=0; i<2; i++)
+    {
+      oscilloscopeBuffers[i] = ByteBuffer.allocateDirect(65536).order(ByteOrder.LITTLE_ENDIAN);
+      oscilloscopeViews[i] = oscilloscopeBuffers[i].asShortBuffer();
+    }
+  }
+
+  /**
+   *
+   * @return the device id
+   */
+  public String getId()
+  {
+    return id;
+  }
+
+  /**
+   *
+   * @return the device number used in binary frames
+   */
+  public int getNumber()
+  {
+    return number;
+  }
+
+  /**
+   *
+   * @return true if the device channel is open
+   */
+  synchronized public boolean isConnected()
+  {
+    return deviceChannel != null && deviceChannel.isOpen();
+  }
+
+  /**
+   * Send the data read from this device to the user from now on.
+   *
+   * @param user
+   */
+  public void subscribe(Session user)
+  {
+    if (subscribers.add(user))
+    {
+      resetHistogramEncoder(user);
+      for (HistogramChannel ch : channels)
+      {
+        ch.peaksPending = true;
+      }
+      // an idle poll may be a long way off
+      wakeAcquisition();
+    }
+  }
+
+  /**
+   * Have the acquisition task poll now rather than when it next would.
+   */
+  synchronized private void wakeAcquisition()
+  {
+    if (acquisitionUpdateTask != null)
+    {
+      acquisitionUpdateTask.wakeUp();
+    }
+  }
+
+  /**
+   *
+   * @param user
+   */
+  public void unsubscribe(Session user)
+  {
+    subscribers.remove(user);
+    for (HistogramChannel ch : channels)
+    {
+      ch.keyframePending.remove(user);
+    }
+    sessionViews.remove(user);
+  }
+
+  /**
+   * Make sure the next binary frame sent to the user is a keyframe.
+   *
+   * @param user
+   */
+  public void resetHistogramEncoder(Session user)
+  {
+    for (HistogramChannel ch : channels)
+    {
+      ch.keyframePending.add(user);
+    }
+  }
+
+  /**
+   * Send the frame to every subscriber. A failure to send to one
+   * subscriber does not stop the frame going to the others.
+   *
+   * @param frame
+   */
+  private void broadcast(PushFrame frame)
+  {
+    broadcast(frame, null, 0);
+  }
+
+  /**
+   * Send the frame to every subscriber, replacing any frame in the slot
+   * that a subscriber has not been sent yet.
+   *
+   * @param frame
+   * @param slot
+   * @param mask the channels the frame holds
+   */
+  private void broadcast(PushFrame frame, String slot, int mask)
+  {
+    for (Session user : subscribers)
+    {
+      send(user, frame, slot, mask);
+    }
+  }
+
+  /**
+   * Queue the frame to be sent to the user.
+   *
+   * @param user
+   * @param frame
+   * @param slot the send queue slot, or null if the frame must not be
+   * dropped
+   * @param mask the channels the frame holds
+   */
+  private void send(Session user, PushFrame frame, String slot, int mask)
+  {
+    if (!user.isOpen())
+    {
+      unsubscribe(user);
+      return;
+    }
+
+    long start = System.nanoTime();
+    getSendQueue(user).offer(frame, slot, mask);
+    sendNanos += System.nanoTime() - start;
+  }
+
+  /**
+   *
+   * @return a JSON response object tagged with this device's id
+   */
+  private JSONObject createJSONResponseObject()
+  {
+    JSONObject json = Client.createJSONResponseObject();
+    json.put("device", id);
+
+    return json;
+  }
+
+  /**
+   * Start acquiring on the channel. Both channels are polled by the same
+   * task, which is started with the first channel and stops once neither
+   * is acquiring.
+   *
+   * @param chan
+   * @throws java.io.IOException
+   */
+  synchronized public void mcphaStartAcquisition(int chan)
+    throws IOException
+  {
+    // if device not connected then return
+    if (!isConnected())
+    {
+      return;
+    }
+
+    // start acquisition
+    // device inactive
+    mcphaSetAquisitionState(chan, 1L);
+
+    if (acquisitionUpdateTask == null)
+    {
+      // inistantiate new task
+      acquisitionUpdateTask = new AcquisitionUpdateTask(this, 1000);
+      acquisitionUpdateTask.start();
+    }
+    else
+    {
+      // poll the new run straight away, and schedule its end
+      acquisitionUpdateTask.wakeUp();
+    }
+  }
+
+  /**
+   * Start a timed acquisition on the channel: set its timer, reset it and
+   * start acquiring, with the commands going out to the device together.
+   *
+   * @param chan
+   * @param ticks timer ticks to acquire for
+   * @throws java.io.IOException
+   */
+  synchronized public void mcphaStartAcquisition(int chan, long ticks)
+    throws IOException
+  {
+    holdCommands();
+    try
+    {
+      mcphaSetTimerValue(chan, ticks);
+      mcphaResetTimer(chan);
+      mcphaStartAcquisition(chan);
+    }
+    finally
+    {
+      flushCommands();
+    }
+  }
+
+  /**
+   * Stop acquiring on the channel, and push its final histogram.
+   *
+   * @param chan
+   * @throws java.io.IOException
+   */
+  synchronized public void mcphaStopAcquisition(int chan)
+    throws IOException
+  {
+    // if device not connected then return
+    if (!isConnected())
+    {
+      return;
+    }
+
+    // stop data acquisition
+    // device inactive
+    mcphaSetAquisitionState(chan, 0L);
+
+    pushHistogramData(1 << validateChannel(chan));
+
+    // stop polling now rather than at the task's next poll
+    boolean acquiring = false;
+    for (HistogramChannel ch : channels)
+    {
+      acquiring |= ch.acquisitionActive;
+    }
+    if (!acquiring && acquisitionUpdateTask != null)
+    {
+      acquisitionUpdateTask.cancel();
+      acquisitionUpdateTask = null;
+    }
+  }
+
+  /**
+   * Called by the acquisition task before each poll.
+   *
+   * @param task
+   * @return the mask of the channels to poll. If there are none the task
+   * must stop, and a new one is started the next time a channel starts
+   * acquiring.
+   */
+  synchronized int getAcquiringChannels(AcquisitionUpdateTask task)
+  {
+    int mask = 0;
+    if (task == acquisitionUpdateTask && isConnected())
+    {
+      for (HistogramChannel ch : channels)
+      {
+        if (ch.acquisitionActive)
+        {
+          mask |= 1 << ch.chan;
+        }
+      }
+    }
+
+    if (mask == 0 && task == acquisitionUpdateTask)
+    {
+      acquisitionUpdateTask = null;
+    }
+
+    return mask;
+  }
+
+  /**
+   *
+   * @param chan
+   * @return the timer value read with the channel's last histogram
+   */
+  synchronized public double getHistogramTimer(int chan)
+  {
+    return channels[(int)validateChannel(chan)].timer;
+  }
+
+  /**
+   *
+   * @param chan
+   * @return the total counts of the channel's last histogram
+   */
+  synchronized public long getHistogramCounts(int chan)
+  {
+    return channels[(int)validateChannel(chan)].counts;
+  }
+
+  /**
+   *
+   * @param chan
+   * @return the number of seconds the run had left to go when the
+   * channel's last histogram was read, or -1 if the run has no preset time
+   */
+  synchronized public double getRemainingTime(int chan)
+  {
+    HistogramChannel ch = channels[(int)validateChannel(chan)];
+    if (ch.preset <= 0)
+    {
+      return -1.0;
+    }
+
+    return Math.max(0L, ch.preset - Math.round(ch.timer * TIMER_FREQ)) * TIME_PER_TICK;
+  }
+
+  /**
+   * Copy the channel's last histogram.
+   *
+   * @param chan
+   * @param dst receives the bin counts
+   * @return the timer value and live time read with the histogram, the
+   * live time being the timer value if the dead time is not known, or
+   * null if no histogram has been read
+   */
+  synchronized public double[] getHistogramSnapshot(int chan, IntBuffer dst)
+  {
+    HistogramChannel ch = channels[(int)validateChannel(chan)];
+    if (ch.data == null)
+    {
+      return null;
+    }
+
+    IntBuffer src = ch.data.duplicate();
+    src.clear();
+    dst.clear();
+    dst.put(src);
+    dst.flip();
+
+    return new double[]{ch.timer, ch.deadTimePerEvent > 0 ? ch.liveTime : ch.timer};
+  }
+
+  /**
+   *
+   * @return the number of sessions the device's data is pushed to
+   */
+  public int getSubscriberCount()
+  {
+    return subscribers.size();
+  }
+
+  /**
+   *
+   * @param user
+   * @param deviceip
+   * @param port
+   */
+  synchronized public void connectToDevice(Session user, String deviceip,
+    int port)
+  {
+    try
+    {
+      if (!isConnected())
+      {
+        deviceChannel = Client.getIOEngine().open(id,
+          new InetSocketAddress(deviceip,port), 8000);
+      }
+
+      JSONObject json = createJSONResponseObject();
+      json.put("command", "connect");
+      json.put("message", "Connection established");
+      json.put("device_number", number);
+      json.put("status", 0);
+      sendJSONObjectMessage( user, json);
+
+      subscribe(user);
+
+      // initialise device, in one write
+      holdCommands();
+      try
+      {
+        mcphaSetSampleRate(4L);
+        for (long chan=0; chan<channels.length; chan++)
+        {
+          mcphaSetPhaDelay(chan, 100L);
+          mcphaSetPhaMinThreshold(chan, 300L);
+          mcphaSetPhaMaxThreshold(chan, 16300L);
+          mcphaSetNegatorMode(chan, 0L);
+        }
+      }
+      finally
+      {
+        flushCommands();
+      }
+//      mcphaResetHistogram(0);
+
+      // get histgram data
+      pushHistogramData(ALL_CHANNELS);
+    }
+    catch (IOException ex)
+    {
+      if (deviceChannel != null)
+      {
+        deviceChannel.close();
+      }
+      deviceChannel = null;
+      try
+      {
+        JSONObject json = createJSONResponseObject();
+        json.put("command", "connect");
+        json.put("message", ex.toString());
+        json.put("status", 1);
+        sendJSONObjectMessage( user, json);
+      }
+      catch (IOException ex1)
+      {
+        Logger.getLogger(DeviceConnection.class.getName()).log(Level.SEVERE, null, ex1);
+      }
+    }
+  }
+
+  /**
+   * Close socket and disconnect from Red Pitaya device.
+   *
+   * @param user
+   * @throws java.io.IOException
+   */
+  synchronized public void disconnectFromDevice(Session user)
+    throws IOException
+  {
+    JSONObject json = createJSONResponseObject();
+    json.put("command", "disconnect");
+    json.put("status", 0);
+
+    if (deviceChannel == null)
+    {
+      json.put("message", "Nothing to do. Device not connected");
+    }
+    else
+    {
+      close();
+      json.put("message", "Device disconnected");
+    }
+
+    sendJSONObjectMessage(user, json);
+  }
+
+  /**
+   * Stop any running acquisition and close the device channel.
+   */
+  synchronized void close()
+  {
+    if (oscilloscopeStream != null)
+    {
+      oscilloscopeStream.cancel();
+    }
+    if (acquisitionUpdateTask != null)
+    {
+      acquisitionUpdateTask.cancel();
+      acquisitionUpdateTask = null;
+    }
+    if (deviceChannel != null)
+    {
+      deviceChannel.close();
+      deviceChannel = null;
+    }
+    for (HistogramChannel ch : channels)
+    {
+      ch.keyframePending.addAll(subscribers);
+      ch.acquisitionActive = false;
+      updateHistoryLog(ch);
+    }
+  }
+
+  /**
+   * Start a new history log when a channel starts a run, and close it
+   * when the run ends.
+   *
+   * @param ch
+   */
+  private void updateHistoryLog(HistogramChannel ch)
+  {
+    if (ch.log != null)
+    {
+      ch.log.close();
+      ch.log = null;
+    }
+    if (ch.acquisitionActive && historyDir != null)
+    {
+      try
+      {
+        ch.log = SpectrumLog.create(historyDir, id, ch.chan,
+          ch.backBuffer().capacity() / 4);
+      }
+      catch (IOException ex)
+      {
+        Logger.getLogger(DeviceConnection.class.getName()).log(Level.WARNING, null, ex);
+      }
+    }
+  }
+
+  /**
+   * Start/Stop data acquisition of the connected device. When state is 0
+   * then the acquisition is stopped, and when it is 1 then it is active.
+   * The new state is sent to all subscribers.
+   *
+   * @param chan
+   * @param state
+   * @throws java.io.IOException
+   */
+  synchronized public void mcphaSetAquisitionState(int chan, long state)
+    throws IOException
+  {
+    if (isConnected())
+    {
+      mcphaSetTimerMode(chan, state);
+
+      HistogramChannel ch = channels[(int)validateChannel(chan)];
+      ch.acquisitionActive = state == 1;
+      updateHistoryLog(ch);
+      JSONObject json = createJSONResponseObject();
+      json.put("command", "set_acquisition_state");
+      json.put("message", "");
+      json.put("chan", ch.chan);
+      json.put("state", ch.acquisitionActive ? "active" : "inactive");
+      json.put("status", 0);
+      broadcast(PushFrame.text(json.toString()));
+    }
+  }
+
+  /**
+   *
+   * @param user
+   * @param chan
+   * @throws java.io.IOException
+   */
+  synchronized public void mcphaGetAquisitionState(Session user, int chan)
+    throws IOException
+  {
+    if (deviceChannel != null)
+    {
+      HistogramChannel ch = channels[(int)validateChannel(chan)];
+      JSONObject json = createJSONResponseObject();
+      json.put("command", "get_acquisition_state");
+      json.put("message", "");
+      json.put("chan", ch.chan);
+      json.put("state", ch.acquisitionActive ? "active" : "inactive");
+      json.put("status", 0);
+      sendJSONObjectMessage(user, json);
+    }
+  }
+
+  /**
+   * Read the timer and histogram of each channel in the mask once and push
+   * them, along with the summary of any defined ROI's, the count rates
+   * since the last snapshot and the peaks found when they have changed, to
+   * every subscriber.
+   * All the channels read go out together in one message per subscriber,
+   * and each message is encoded at most once per format whatever the
+   * number of subscribers.
+   *
+   * Once warmed up a poll allocates nothing on the calling thread beyond
+   * what it has to send: the frames encoded for subscribers, the ROI, rate
+   * and peak messages, and the fit of a peak that has changed. A poll of an
+   * idle device that no one is subscribed to allocates nothing.
+   *
+   * @param mask bit 0 for channel 0 and bit 1 for channel 1
+   * @throws IOException
+   */
+  synchronized public void pushHistogramData(int mask)
+    throws IOException
+  {
+    long start = System.nanoTime();
+
+    // queue the timer and histogram reads of every channel before waiting
+    // for any of them, so that they go out in one write and the device
+    // answers them back to back
+    int r = 0;
+    holdCommands();
+    try
+    {
+      for (HistogramChannel ch : channels)
+      {
+        if ((mask & (1 << ch.chan)) != 0)
+        {
+          pollReads[r++] = requestResponse(MCPHA_COMMAND_READ_TIMER, ch.chan, 0L,
+            pollTimerBuffers[ch.chan], DeviceChannel.POLL);
+          pollReads[r++] = requestResponse(MCPHA_COMMAND_READ_HISTOGRAM_DATA, ch.chan, 0L,
+            ch.backBuffer(), DeviceChannel.POLL);
+        }
+      }
+    }
+    finally
+    {
+      flushCommands();
+    }
+
+    r = 0;
+    for (HistogramChannel ch : channels)
+    {
+      if ((mask & (1 << ch.chan)) != 0)
+      {
+        // get elapsed time
+        double t = (double)awaitResponse(pollReads[r++], MCPHA_COMMAND_READ_TIMER)
+          .getLong(0) * TIME_PER_TICK;
+
+        // get histogram data
+        awaitResponse(pollReads[r++], MCPHA_COMMAND_READ_HISTOGRAM_DATA);
+        ch.data = ch.flip();
+        ch.timer = t;
+        ch.sumBins();
+      }
+    }
+
+    int sequence = histogramSequence++;
+
+    long read = System.nanoTime();
+    Metrics.pushPhase(Metrics.PHASE_IO, read - start);
+
+    // log the snapshots of channels that are in a run
+    for (HistogramChannel ch : channels)
+    {
+      if ((mask & (1 << ch.chan)) != 0 && ch.log != null)
+      {
+        try
+        {
+          ch.log.append(ch.timer, sequence, ch.data);
+        }
+        catch (IOException ex)
+        {
+          Logger.getLogger(DeviceConnection.class.getName()).log(Level.WARNING,
+            "Stopped logging "+ch.log.getFile(), ex);
+          ch.log.close();
+          ch.log = null;
+        }
+      }
+    }
+
+    long logged = System.nanoTime();
+    Metrics.pushPhase(Metrics.PHASE_LOG, logged - read);
+
+    // push data
+    sendNanos = 0;
+    PushFrame text = null;
+    ByteBuffer[] deltas = pushDeltas;
+    ByteBuffer[] keyframes = pushKeyframes;
+    PushFrame[] binary = pushBinary;
+    Arrays.fill(deltas, null);
+    Arrays.fill(keyframes, null);
+    Arrays.fill(binary, null);
+    Map<HistogramView, PushFrame> views = null;
+    // the set's iterator is only made when there is someone to send to
+    for (Session user : subscribers.isEmpty() ? NO_SESSIONS : subscribers)
+    {
+      PushFrame frame;
+      HistogramView view = sessionViews.get(user);
+      if (view != null)
+      {
+        // sessions looking at the same view share its encoding
+        boolean isBinary = binarySessions.contains(user);
+        if (views == null)
+        {
+          views = new HashMap<>();
+        }
+        frame = views.get(view);
+        if (frame == null || frame.isBinary() != isBinary)
+        {
+          frame = encodeHistogramView(view, isBinary, mask, sequence);
+          views.put(view, frame);
+        }
+      }
+      else if (binarySessions.contains(user))
+      {
+        // a delta that replaces an unsent one would not apply to what the
+        // session has, so it is sent keyframes instead
+        boolean replacing = getSendQueue(user).isPending(histogramSlot, mask);
+        int key = 0;
+        for (HistogramChannel ch : channels)
+        {
+          if ((mask & (1 << ch.chan)) != 0 && (ch.keyframePending.remove(user) || replacing))
+          {
+            key |= 1 << ch.chan;
+          }
+        }
+        frame = binary[key];
+        if (frame == null)
+        {
+          ByteBuffer[] parts = new ByteBuffer[channels.length];
+          int n = 0;
+          for (HistogramChannel ch : channels)
+          {
+            if ((mask & (1 << ch.chan)) == 0)
+            {
+              continue;
+            }
+            if (deltas[ch.chan] == null)
+            {
+              deltas[ch.chan] = ch.encoder.encode(number, ch.chan, ch.timer, sequence, ch.data);
+              if (deltas[ch.chan].get(0) == BinaryFrame.FRAME_HISTOGRAM)
+              {
+                keyframes[ch.chan] = deltas[ch.chan];
+              }
+            }
+            if ((key & (1 << ch.chan)) != 0 && keyframes[ch.chan] == null)
+            {
+              keyframes[ch.chan] = BinaryFrame.encodeHistogram(number, ch.chan,
+                ch.timer, sequence, ch.data);
+            }
+            parts[n++] = (key & (1 << ch.chan)) != 0 ? keyframes[ch.chan] : deltas[ch.chan];
+          }
+          frame = PushFrame.binary(BinaryFrame.join(parts, n));
+          binary[key] = frame;
+        }
+      }
+      else
+      {
+        if (text == null)
+        {
+          text = PushFrame.text(getHistogramJSON(mask, null));
+        }
+        frame = text;
+      }
+      send(user, frame, histogramSlot, mask);
+    }
+
+    // if ROI's have been defined then we push their summary
+    for (HistogramChannel ch : channels)
+    {
+      if ((mask & (1 << ch.chan)) != 0 && !ch.rois.isEmpty())
+      {
+        getRoiData(ch.chan);
+      }
+    }
+
+    long now = System.currentTimeMillis();
+    for (HistogramChannel ch : channels)
+    {
+      if ((mask & (1 << ch.chan)) != 0 && ch.updateRates(now))
+      {
+        pushRateData(ch);
+      }
+    }
+
+    // the peak table is only pushed when it changes, or to a new subscriber
+    for (HistogramChannel ch : channels)
+    {
+      if ((mask & (1 << ch.chan)) != 0 && (ch.peakSearch.update(ch) || ch.peaksPending))
+      {
+        getPeakData(ch.chan);
+      }
+    }
+
+    Metrics.pushPhase(Metrics.PHASE_ENCODE, System.nanoTime() - logged - sendNanos);
+    Metrics.pushPhase(Metrics.PHASE_SEND, sendNanos);
+  }
+
+  /**
+   * Set the part of the histograms that is pushed to the user, and push
+   * that part of the current histograms straight away. A null view goes
+   * back to pushing the whole histograms.
+   *
+   * @param user
+   * @param view
+   * @throws IOException
+   */
+  synchronized public void setHistogramView(Session user, HistogramView view)
+    throws IOException
+  {
+    subscribe(user);
+
+    if (view == null)
+    {
+      if (sessionViews.remove(user) != null)
+      {
+        // the full resolution deltas restart from a keyframe
+        resetHistogramEncoder(user);
+      }
+      return;
+    }
+
+    sessionViews.put(user, view);
+
+    int mask = 0;
+    for (HistogramChannel ch : channels)
+    {
+      if (ch.data != null)
+      {
+        mask |= 1 << ch.chan;
+      }
+    }
+    if (mask != 0)
+    {
+      send(user, encodeHistogramView(view, binarySessions.contains(user),
+        mask, histogramSequence-1), histogramSlot, mask);
+    }
+  }
+
+  /**
+   *
+   * @param view
+   * @param binary
+   * @param mask channels to encode
+   * @param sequence
+   * @return the frame holding the view of the histograms
+   */
+  private PushFrame encodeHistogramView(HistogramView view, boolean binary,
+    int mask, int sequence)
+  {
+    if (binary)
+    {
+      ByteBuffer[] parts = new ByteBuffer[channels.length];
+      int n = 0;
+      for (HistogramChannel ch : channels)
+      {
+        if ((mask & (1 << ch.chan)) != 0)
+        {
+          parts[n++] = view.encode(number, ch.chan, ch.timer, sequence, ch.data);
+        }
+      }
+      return PushFrame.binary(BinaryFrame.join(parts, n));
+    }
+
+    return PushFrame.text(getHistogramJSON(mask, view));
+  }
+
+  /**
+   * Write the histogram message for JSON sessions. A message holding a
+   * single channel carries the histogram in its own fields, as it always
+   * has, while a message holding both carries one such object per
+   * channel in its histograms array. The fields are written in the order
+   * org.json used to put them in.
+   *
+   * @param mask channels to include
+   * @param view part of the histograms to include, or null for all of them
+   * @return the histogram message for JSON sessions
+   */
+  synchronized String getHistogramJSON(int mask, HistogramView view)
+  {
+    JsonWriter out = jsonWriter.clear();
+    out.raw('{');
+    if (Integer.bitCount(mask & ALL_CHANNELS) == 1)
+    {
+      HistogramChannel ch = channels[Integer.numberOfTrailingZeros(mask)];
+      writeHistogramFields(out, ch.chan, ch.timer, ch.data, view);
+    }
+    else
+    {
+      out.name("histograms").raw('[');
+      for (HistogramChannel ch : channels)
+      {
+        if ((mask & (1 << ch.chan)) != 0)
+        {
+          if (out.last() != '[')
+          {
+            out.raw(',');
+          }
+          out.raw('{');
+          writeHistogramFields(out, ch.chan, ch.timer, ch.data, view);
+          out.raw('}');
+        }
+      }
+      out.raw(']');
+    }
+    out.name("type").string("resp");
+    out.name("message").string("");
+    out.name("device").string(id);
+    out.name("command").string("get_histogram_data");
+    out.name("status").value(0);
+
+    return out.raw('}').toString();
+  }
+
+  /**
+   * Write the fields of a channel's histogram, as they appear in every
+   * histogram message, live or replayed.
+   *
+   * @param out
+   * @param chan
+   * @param timer
+   * @param data
+   * @param view part of the histogram to write, or null for all of it
+   */
+  static void writeHistogramFields(JsonWriter out, int chan, double timer,
+    IntBuffer data, HistogramView view)
+  {
+    out.name("timer").raw('"').twoDecimals(timer).raw('"');
+    out.name("data");
+    if (view != null)
+    {
+      view.writeJSON(out, data);
+      out.name("from").value(view.from);
+      out.name("label").string("histogram");
+      out.name("to").value(view.to);
+    }
+    else
+    {
+      out.points(data);
+      out.name("label").string("histogram");
+    }
+    out.name("chan").value(chan);
+  }
+
+  /**
+   *
+   * @param chan
+   * @throws IOException
+   */
+  synchronized public void clearSpectrumData(long chan)
+    throws IOException
+  {
+    mcphaResetHistogram(chan);
+
+    // get histogram data
+    pushHistogramData(1 << validateChannel(chan));
+  }
+
+  /**
+   * Push the summary of every ROI of the channel to every subscriber: its
+   * counts, its net area and its count rate. The bins are already in the
+   * histogram, so they are not sent again.
+   *
+   * @param chan
+   * @throws java.io.IOException
+   */
+  synchronized public void getRoiData(int chan)
+    throws IOException
+  {
+    HistogramChannel ch = channels[(int)validateChannel(chan)];
+    if (ch.data == null)
+    {
+      return;
+    }
+
+    JsonWriter out = jsonWriter.clear();
+    out.raw('{').name("timer").value(ch.timer);
+    out.name("rois").raw('[');
+    for (HistogramChannel.ROI r : ch.rois.values())
+    {
+      long counts = ch.sum(r.start, r.end);
+      if (out.last() != '[')
+      {
+        out.raw(',');
+      }
+      out.raw('{').name("rate").value(ch.timer > 0.0 ? counts / ch.timer : 0.0);
+      out.name("counts").value(counts);
+      out.name("name").string(r.name);
+      out.name("start").value(r.start);
+      out.name("end").value(r.end);
+      out.name("net").value(Math.round(ch.netArea(r)));
+      out.raw('}');
+    }
+    out.raw(']');
+    out.name("chan").value(ch.chan);
+    out.name("type").string("resp");
+    out.name("message").string("");
+    out.name("device").string(id);
+    out.name("command").string("get_roi_data");
+    out.name("status").value(0);
+    out.raw('}');
+
+    broadcast(PushFrame.text(out.toString()), roiSlot, 1 << ch.chan);
+  }
+
+  /**
+   * Define the named ROI of the channel, or move it if it is already
+   * defined.
+   *
+   * @param user
+   * @param chan
+   * @param name
+   * @param start first bin
+   * @param end last bin
+   * @throws IOException
+   */
+  synchronized public void mcphaSetRoi(Session user, int chan, String name,
+    int start, int end)
+    throws IOException
+  {
+    if (start < 0 || end >= HistogramChannel.BINS || start > end)
+    {
+      JSONObject json = createJSONResponseObject();
+      json.put("command", "set_roi");
+      json.put("message", String.format("ROI [%d, %d] outside range of 0 to %d.",
+        start, end, HistogramChannel.BINS - 1));
+      json.put("status", 1);
+      sendJSONObjectMessage( user, json);
+      return;
+    }
+
+    HistogramChannel ch = channels[(int)validateChannel(chan)];
+    HistogramChannel.ROI r = ch.rois.get(name);
+    if (r == null)
+    {
+      ch.rois.put(name, new HistogramChannel.ROI(name, start, end));
+    }
+    else
+    {
+      r.start = start;
+      r.end = end;
+      // the next rate is of the new range
+      r.rateCounts = -1;
+    }
+
+    getRoiData(chan);
+  }
+
+  /**
+   * Remove the named ROI of the channel, or all of them if name is null.
+   *
+   * @param chan
+   * @param name
+   * @throws IOException
+   */
+  synchronized public void mcphaDeleteRoi(int chan, String name)
+    throws IOException
+  {
+    HistogramChannel ch = channels[(int)validateChannel(chan)];
+    if (name == null)
+    {
+      ch.rois.clear();
+    }
+    else
+    {
+      ch.rois.remove(name);
+    }
+
+    getRoiData(chan);
+  }
+
+  /**
+   * Push the peaks found in the channel's last histogram to every
+   * subscriber.
+   *
+   * @param chan
+   * @throws java.io.IOException
+   */
+  synchronized public void getPeakData(int chan)
+    throws IOException
+  {
+    HistogramChannel ch = channels[(int)validateChannel(chan)];
+    ch.peaksPending = false;
+
+    JSONArray peaks = new JSONArray();
+    for (PeakSearch.Peak p : ch.peakSearch.getPeaks())
+    {
+      JSONObject o = new JSONObject();
+      o.put("id", p.id);
+      o.put("centroid", Math.round(p.centroid * 100) / 100.0);
+      o.put("fwhm", Math.round(p.fwhm * 100) / 100.0);
+      o.put("area", Math.round(p.area));
+      o.put("height", Math.round(p.height));
+      o.put("start", p.start);
+      o.put("end", p.end);
+      peaks.put(o);
+    }
+
+    JSONObject json = createJSONResponseObject();
+    json.put("peaks", peaks);
+    json.put("timer", ch.timer);
+    json.put("chan", ch.chan);
+    json.put("device", id);
+    json.put("command", "get_peak_data");
+    json.put("message", "");
+    json.put("status", 0);
+
+    broadcast(PushFrame.text(json.toString()), peakSlot, 1 << ch.chan);
+  }
+
+  /**
+   * Set the width and significance of the peaks looked for in the
+   * channel's histograms, and search the last one again.
+   *
+   * @param chan
+   * @param fwhm FWHM, in bins, of the narrowest peak
+   * @param resolution FWHM of a peak as a fraction of its position
+   * @param sensitivity standard deviations a peak must stand above the
+   * background
+   * @throws IOException
+   */
+  synchronized public void mcphaSetPeakSearch(int chan, double fwhm,
+    double resolution, double sensitivity)
+    throws IOException
+  {
+    HistogramChannel ch = channels[(int)validateChannel(chan)];
+    ch.peakSearch.setParameters(Math.max(1.0, fwhm), Math.max(0.0, resolution),
+      Math.max(1.0, sensitivity));
+    if (ch.data != null)
+    {
+      ch.peakSearch.update(ch);
+      getPeakData(chan);
+    }
+  }
+
+  /**
+   * Push the count rates just taken of the channel and its ROI's to every
+   * subscriber, along with its dead time if that is known.
+   *
+   * @param ch
+   * @throws IOException
+   */
+  private void pushRateData(HistogramChannel ch)
+    throws IOException
+  {
+    long time = ch.rates.lastTime();
+    JSONObject rois = new JSONObject();
+    for (HistogramChannel.ROI r : ch.rois.values())
+    {
+      if (r.rates.lastTime() == time)
+      {
+        rois.put(r.name, r.rates.lastRate());
+      }
+    }
+
+    JSONObject json = createJSONResponseObject();
+    json.put("time", time);
+    json.put("rate", ch.rates.lastRate());
+    json.put("rois", rois);
+    double deadFraction = ch.rates.lastDeadFraction();
+    if (!Double.isNaN(deadFraction))
+    {
+      json.put("dead_fraction", deadFraction);
+      json.put("live_time", ch.liveTime);
+      json.put("dead_time", ch.deadTime);
+    }
+    json.put("timer", ch.timer);
+    json.put("chan", ch.chan);
+    json.put("device", id);
+    json.put("command", "get_rate_data");
+    json.put("message", "");
+    json.put("status", 0);
+
+    broadcast(PushFrame.text(json.toString()));
+  }
+
+  /**
+   * Send the user the count rate history of the channel and of each of its
+   * ROI's, as [time, rate] series.
+   *
+   * @param user
+   * @param chan
+   * @throws IOException
+   */
+  synchronized public void getRateHistory(Session user, int chan)
+    throws IOException
+  {
+    HistogramChannel ch = channels[(int)validateChannel(chan)];
+    JSONObject rois = new JSONObject();
+    for (HistogramChannel.ROI r : ch.rois.values())
+    {
+      rois.put(r.name, r.rates.ratesJSON());
+    }
+
+    JSONObject json = createJSONResponseObject();
+    json.put("command", "get_rate_history");
+    json.put("chan", ch.chan);
+    json.put("rate", ch.rates.ratesJSON());
+    json.put("dead_fraction", ch.rates.deadFractionsJSON());
+    json.put("rois", rois);
+    json.put("status", 0);
+    sendJSONObjectMessage(user, json);
+  }
+
+  /**
+   * Set how long the channel is dead after each event it takes, from which
+   * its dead time is estimated. Zero means it is not known.
+   *
+   * @param chan
+   * @param seconds
+   */
+  synchronized public void mcphaSetDeadTime(int chan, double seconds)
+  {
+    channels[(int)validateChannel(chan)].deadTimePerEvent = Math.max(0.0, seconds);
+  }
+
+  /**
+   * Capture one oscilloscope trace and send it to the user. The capture
+   * runs on the scheduler, so the caller does not wait for the trigger.
+   * Only one capture runs at a time, and not while the oscilloscope is
+   * streaming.
+   *
+   * @param user
+   * @param channels
+   * @param trigger_mode
+   * @param trigger_level
+   * @param trigger_slope
+   * @param trigger_source
+   * @throws IOException
+   */
+  synchronized public void acquireOscilloscopeData(Session user,
+    int channels, String trigger_mode, int trigger_level, String trigger_slope,
+    int trigger_source)
+    throws IOException
+  {
+    checkConnected();
+
+    if (oscilloscopeStream != null)
+    {
+      sendOscilloscopeError(user, "Oscilloscope is streaming");
+      return;
+    }
+    if (oscilloscopeCapturing)
+    {
+      sendOscilloscopeError(user, "Oscilloscope capture in progress");
+      return;
+    }
+    oscilloscopeCapturing = true;
+
+    OscilloscopeCapture capture = new OscilloscopeCapture(this, trigger_mode,
+      trigger_level, trigger_slope, trigger_source);
+    new ScheduledJob()
+    {
+      @Override
+      protected long step()
+      {
+        try
+        {
+          long delay = capture.step();
+          if (delay >= 0)
+          {
+            return delay;
+          }
+          if (capture.getData() == null)
+          {
+            sendOscilloscopeError(user, "Oscilloscope did not trigger");
+          }
+          else
+          {
+            sendOscilloscopeData(user, channels, capture.getData());
+          }
+        }
+        catch (IOException ex)
+        {
+          Logger.getLogger(DeviceConnection.class.getName()).log(Level.WARNING, null, ex);
+        }
+        return -1;
+      }
+
+      @Override
+      protected void finished()
+      {
+        oscilloscopeCaptureDone();
+      }
+    }.start();
+  }
+
+  /**
+   * Called by a one-shot capture once its trace has been sent, or it has
+   * failed.
+   */
+  synchronized private void oscilloscopeCaptureDone()
+  {
+    oscilloscopeCapturing = false;
+  }
+
+  /**
+   * Capture oscilloscope traces continuously and push them to all
+   * subscribers, replacing any stream already running. A stream is not
+   * started while a one-shot capture is in progress.
+   *
+   * @param channels bit 0 for channel 1 and bit 1 for channel 2
+   * @param trigger_mode "n" for normal, "a" for auto
+   * @param trigger_level
+   * @param trigger_slope "r" for rising, "f" for falling
+   * @param trigger_source 1 for channel 1, 2 for channel 2
+   * @throws IOException
+   */
+  synchronized public void startOscilloscopeStream(int channels,
+    String trigger_mode, int trigger_level, String trigger_slope,
+    int trigger_source)
+    throws IOException
+  {
+    checkConnected();
+
+    if (oscilloscopeCapturing)
+    {
+      throw new IOException("Oscilloscope capture in progress");
+    }
+
+    if (oscilloscopeStream != null)
+    {
+      oscilloscopeStream.cancel();
+    }
+    oscilloscopeStream = new OscilloscopeStream(this, channels, trigger_mode,
+      trigger_level, trigger_slope, trigger_source);
+
+    oscilloscopeStream.start();
+
+    broadcastOscilloscopeStreamState(true);
+  }
+
+  /**
+   * Stop streaming oscilloscope traces. Subscribers are told once the
+   * stream has stopped.
+   */
+  synchronized public void stopOscilloscopeStream()
+  {
+    if (oscilloscopeStream != null)
+    {
+      oscilloscopeStream.cancel();
+    }
+    else
+    {
+      broadcastOscilloscopeStreamState(false);
+    }
+  }
+
+  /**
+   *
+   * @return true if oscilloscope traces are being streamed
+   */
+  synchronized public boolean isOscilloscopeStreaming()
+  {
+    return oscilloscopeStream != null;
+  }
+
+  /**
+   * Called by a stream when it has stopped.
+   *
+   * @param stream
+   */
+  synchronized void oscilloscopeStreamStopped(OscilloscopeStream stream)
+  {
+    if (oscilloscopeStream == stream)
+    {
+      oscilloscopeStream = null;
+      broadcastOscilloscopeStreamState(false);
+    }
+  }
+
+  /**
+   *
+   * @param active
+   */
+  private void broadcastOscilloscopeStreamState(boolean active)
+  {
+    JSONObject json = createJSONResponseObject();
+    json.put("command", "set_oscilloscope_stream");
+    json.put("message", "");
+    json.put("state", active ? "active" : "inactive");
+    json.put("status", 0);
+    broadcast(PushFrame.text(json.toString()));
+  }
+
+  /**
+   * Push a streamed trace to every subscriber. A subscriber that has not
+   * been sent the previous trace yet is sent this one instead, rather than
+   * falling further and further behind.
+   *
+   * @param channels
+   * @param sequence
+   * @param data
+   */
+  void pushOscilloscopeData(int channels, int sequence, ShortBuffer data)
+  {
+    PushFrame text = null, binary = null;
+    for (Session user : subscribers)
+    {
+      if (!user.isOpen())
+      {
+        unsubscribe(user);
+        continue;
+      }
+
+      PushFrame frame;
+      if (binarySessions.contains(user))
+      {
+        if (binary == null)
+        {
+          binary = PushFrame.binary(BinaryFrame.encodeOscilloscope(number,
+            channels, sequence, data));
+        }
+        frame = binary;
+      }
+      else
+      {
+        if (text == null)
+        {
+          text = PushFrame.text(getOscilloscopeJSON(channels, data, sequence));
+        }
+        frame = text;
+      }
+      getSendQueue(user).offer(frame, oscilloscopeSlot, ALL_CHANNELS);
+    }
+  }
+
+  /**
+   * Program the trigger and start the oscilloscope, as one step so that
+   * no poll or capture step is interleaved with the set up. The commands
+   * go out to the device in one write, but a control command sent
+   * without the lock, such as a threshold being tuned live, may still be
+   * queued among them. Those never touch the oscilloscope's settings.
+   *
+   * @param source 0 for channel 1, 1 for channel 2
+   * @param falling true to trigger on the falling edge
+   * @param auto true for auto trigger mode
+   * @param level
+   * @throws IOException
+   */
+  synchronized public void armOscilloscope(int source, boolean falling,
+    boolean auto, int level)
+    throws IOException
+  {
+    holdCommands();
+    try
+    {
+      mcphaResetOscilloscope();
+
+      mcphaSetTriggerSource(source);
+      mcphaSetTriggerSlope(falling ? 1L : 0L);
+      mcphaSetTriggerMode(auto ? 1L : 0L);
+      mcphaSetTriggerLevel(level);
+
+      // Set number of samples to skip before trigger
+      mcphaSetNumberOfSamplesBeforeTrigger(5000);
+
+      // Set total number of samples to acquire for this run
+      mcphaSetTotalNumberOfSamplesToAcquire(65536);
+
+      // Start oscilloscope
+      mcphaStartOscilloscope();
+    }
+    finally
+    {
+      flushCommands();
+    }
+  }
+
+  /**
+   * Push captured oscilloscope data to the user.
+   *
+   * @param user
+   * @param channels bit 0 for channel 1 and bit 1 for channel 2
+   * @param data interleaved channel samples
+   * @throws IOException
+   */
+  public void sendOscilloscopeData(Session user, int channels, ShortBuffer data)
+    throws IOException
+  {
+    sendJSONTextMessage(user, getOscilloscopeJSON(channels, data, -1));
+  }
+
+  /**
+   * Write the get_oscilloscope_data response for the samples, with the
+   * fields in the order org.json used to put them in.
+   *
+   * @param channels bit 0 for channel 1 and bit 1 for channel 2
+   * @param data interleaved channel samples
+   * @param sequence number of a streamed trace, or -1 for none
+   * @return the get_oscilloscope_data response for the samples
+   */
+  String getOscilloscopeJSON(int channels, ShortBuffer data, int sequence)
+  {
+    boolean channel_1_requested = (channels & 0x01) != 0;
+    boolean channel_2_requested = (channels & 0x02) != 0;
+
+    // streamed traces and captures may be written at the same time
+    synchronized (oscilloscopeWriter)
+    {
+      JsonWriter out = oscilloscopeWriter.clear();
+      out.raw('{');
+      if (sequence >= 0)
+      {
+        out.name("sequence").value(sequence);
+      }
+      out.name("data2");
+      if (channel_2_requested)
+      {
+        out.points(data, 1, 2);
+      }
+      else
+      {
+        out.raw("[]");
+      }
+      out.name("data1");
+      if (channel_1_requested)
+      {
+        out.points(data, 0, 2);
+      }
+      else
+      {
+        out.raw("[]");
+      }
+      out.name("type").string("resp");
+      out.name("message").string("");
+      out.name("device").string(id);
+      out.name("label1").string(channel_1_requested ? "Channel 1" : "");
+      out.name("command").string("get_oscilloscope_data");
+      out.name("label2").string(channel_2_requested ? "Channel 2" : "");
+      out.name("status").value(0);
+
+      return out.raw('}').toString();
+    }
+  }
+
+  /**
+   * Tell the user an oscilloscope capture failed.
+   *
+   * @param user
+   * @param message
+   * @throws IOException
+   */
+  public void sendOscilloscopeError(Session user, String message)
+    throws IOException
+  {
+    JSONObject json = createJSONResponseObject();
+    json.put("command", "get_oscilloscope_data");
+    json.put("message", message);
+    json.put("status", 1);
+
+    sendJSONObjectMessage(user, json);
+  }
+
+  /**
+   * Set sample rate
+   *
+   * @param rate
+   * @throws java.io.IOException
+   */
+  public void mcphaSetSampleRate(long rate)
+    throws IOException
+  {
+    if (rate < 4)
+    {
+      rate = 4;
+    }
+
+    sendCommand(MCPHA_COMMAND_SET_SAMPLE_RATE, 0L, rate);
+  }
+
+  /**
+   * Reset histogram
+   *
+   * @param chan
+   * @throws java.io.IOException
+   */
+  public void mcphaResetHistogram(long chan)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_RESET_HISTOGRAM, chan, 0L);
+  }
+
+  /**
+   * Reset oscilloscope
+   *
+   * @throws java.io.IOException
+   */
+  public void mcphaResetOscilloscope()
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_RESET_OSCILLOSCOPE, 0L, 0L);
+  }
+
+  /**
+   * Reset generator
+   *
+   * @throws java.io.IOException
+   */
+  public void mcphaResetGenerator()
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_RESET_GENERATOR, 0L, 0L);
+  }
+
+  /**
+   * Set negator mode, 0 for disabled and 1 for enabled
+   *
+   * @param chan
+   * @param mode
+   * @throws java.io.IOException
+   */
+  public void mcphaSetNegatorMode(long chan, long mode)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_NEGATOR_MODE, chan, mode);
+  }
+
+  /**
+   * Set baseline mode, 0 for none and 1 for auto
+   *
+   * @param chan
+   * @param mode
+   * @throws java.io.IOException
+   */
+  public void mcphaSetBaselineMode(long chan, long mode)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_BASELINE_MODE, chan, mode);
+  }
+
+  /**
+   * Set baseline level
+   *
+   * @param chan
+   * @param level
+   * @throws java.io.IOException
+   */
+  public void mcphaSetBaselineLevel(long chan, long level)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_BASELINE_LEVEL, chan, level);
+  }
+
+  /**
+   * Set PHA delay
+   *
+   * @param chan
+   * @param delay
+   * @throws java.io.IOException
+   */
+  public void mcphaSetPhaDelay(long chan, long delay)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_PHA_DELAY, chan, delay);
+  }
+
+  /**
+   * Set PHA min threshold
+   *
+   * @param chan
+   * @param threshold
+   * @throws java.io.IOException
+   */
+  public void mcphaSetPhaMinThreshold(long chan, long threshold)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_PHA_MIN_THRESHOLD, chan, threshold);
+  }
+
+  /**
+   * Set PHA max threshold
+   *
+   * @param chan
+   * @param threshold
+   * @throws java.io.IOException
+   */
+  public void mcphaSetPhaMaxThreshold(long chan, long threshold)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_PHA_MAX_THRESHOLD, chan, threshold);
+  }
+
+  /**
+   * Reset timer
+   *
+   * @param chan
+   * @throws java.io.IOException
+   */
+  public void mcphaResetTimer(long chan)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_RESET_TIMER, chan, 0L);
+  }
+
+  /**
+   * Set timer value
+   *
+   * @param chan
+   * @param value
+   * @throws java.io.IOException
+   */
+  synchronized public void mcphaSetTimerValue(long chan, long value)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_TIMER_VALUE, chan, value);
+    channels[(int)validateChannel(chan)].preset = value;
+  }
+
+  /**
+   * Set timer mode, 0 for stop and 1 for running
+   *
+   * @param chan
+   * @param mode
+   * @throws java.io.IOException
+   */
+  public void mcphaSetTimerMode(long chan, long mode)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_TIMER_MODE, chan, mode);
+  }
+
+  /**
+   * Get timer value in seconds which is derived from the 64-bit unsigned
+   * integer value returned from the server, that is the number of counts
+   * at 125MHz from the start of the acquisition.
+   *
+   * @param chan
+   * @return the timer value in seconds since the start of acquisition
+   * @throws java.io.IOException
+   */
+  synchronized public double mcphaGetTimerValue(long chan)
+    throws IOException
+  {
+    long number = readResponse(MCPHA_COMMAND_READ_TIMER, chan, 0L, timerBuffer,
+      DeviceChannel.POLL).getLong(0);
+
+    return (double)number * TIME_PER_TICK;
+  }
+
+  /**
+   * Set number of samples to skip before triggering.
+   *
+   * @param samples
+   * @throws java.io.IOException
+   */
+  public void mcphaSetNumberOfSamplesBeforeTrigger(long samples)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_NUMBER_OF_SAMPLES_BEFORE_TRIGGER, 0L, samples);
+  }
+
+  /**
+   * Set total number of samples to acquire.
+   *
+   * @param samples
+   * @throws java.io.IOException
+   */
+  public void mcphaSetTotalNumberOfSamplesToAcquire(long samples)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_TOTAL_NUMBER_OF_SAMPLES_TO_ACQUIRE, 0L, samples);
+  }
+
+  /**
+   * Set trigger source.
+   *
+   * @param source 0 for channel 1, 1 for channel 2
+   * @throws java.io.IOException
+   */
+  public void mcphaSetTriggerSource(long source)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_TRIGGER_SOURCE, source, 0L);
+  }
+
+  /**
+   * Set trigger slope.
+   *
+   * @param slope 0 for rising, 1 for falling
+   * @throws java.io.IOException
+   */
+  public void mcphaSetTriggerSlope(long slope)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_TRIGGER_SLOPE, 0L, slope);
+  }
+
+  /**
+   * Set trigger mode.
+   *
+   * @param mode 0 for normal, 1 for auto
+   * @throws java.io.IOException
+   */
+  public void mcphaSetTriggerMode(long mode)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_TRIGGER_MODE, 0L, mode);
+  }
+
+  /**
+   * Set trigger level.
+   *
+   * @param level signed 16-bit level
+   * @throws java.io.IOException
+   */
+  public void mcphaSetTriggerLevel(long level)
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_SET_TRIGGER_LEVEL, 0L, level & 0xFFFFL);
+  }
+
+  /**
+   * Start oscilloscope.
+   *
+   * @throws java.io.IOException
+   */
+  public void mcphaStartOscilloscope()
+    throws IOException
+  {
+    sendCommand(MCPHA_COMMAND_START_OSCILLOSCOPE, 0L, 0L);
+  }
+
+  /**
+   * Return the status of the oscilloscope.
+   *
+   * @return the status of the oscilloscope
+   * @throws java.io.IOException
+   */
+  synchronized public int mcphaReadOscilloscopeStatus()
+    throws IOException
+  {
+    return readResponse(MCPHA_COMMAND_READ_OSCILLOSCOPE_STATUS, 0L, 4L, statusBuffer,
+      DeviceChannel.BULK).getInt(0);
+  }
+
+  /**
+   * Get histogram data. The returned buffer is a view of one of the
+   * channel's two histogram buffers, and stays valid until the channel's
+   * read after next.
+   *
+   * @param chan
+   * @return
+   * @throws java.io.IOException
+   */
+  synchronized public IntBuffer mcphaGetHistogramData(long chan)
+    throws IOException
+  {
+    HistogramChannel ch = channels[(int)validateChannel(chan)];
+    readResponse(MCPHA_COMMAND_READ_HISTOGRAM_DATA, chan, 0L, ch.backBuffer(),
+      DeviceChannel.POLL);
+
+    return ch.flip();
+  }
+
+  /**
+   * Get oscilloscope data which are 16-bit signed integer values.
+   * The channels are interleaved sample-by-sample (ch1, ch2, ch1, ch2, etc).
+   * The returned buffer is a view of one of the device's two oscilloscope
+   * buffers, and stays valid until the read after next.
+   *
+   * @return a ShortBuffer of channel data values.
+   * @throws java.io.IOException
+   */
+  synchronized public ShortBuffer mcphaGetOsilloscopeData()
+    throws IOException
+  {
+    int back = 1 - oscilloscopeFront;
+    readResponse(MCPHA_COMMAND_READ_OSCILLOSCOPE_DATA, 0L, 0L, oscilloscopeBuffers[back],
+      DeviceChannel.BULK);
+    oscilloscopeFront = back;
+
+    return oscilloscopeViews[back];
+  }
+
+  /**
+   * Send command to device. Commands are queued on the device channel as
+   * control commands and written in order, ahead of any reads waiting to
+   * go out, so there is no need to wait for them to go out. Nor do they
+   * wait for the connection's lock, which a poll or a capture may be
+   * holding while it reads.
+   *
+   * @param code
+   * @param chan
+   * @param data
+   */
+  private void sendCommand(long code, long chan, long data)
+    throws IOException
+  {
+    DeviceChannel channel = deviceChannel;
+    if (channel == null)
+    {
+      throw new IOException("Device "+id+" not connected");
+    }
+
+    if (debug)
+    {
+      logDebugMessage("sendCommand - device="+id+", code="+code+", chan="+chan+", data="+data);
+    }
+
+    channel.send(encodeCommand(code, chan, data));
+    Metrics.commandSent(code);
+  }
+
+  /**
+   * Send a read command to the device and wait for the response to fill
+   * the given buffer.
+   *
+   * @param code
+   * @param chan
+   * @param data
+   * @param response
+   * @param priority DeviceChannel.POLL or BULK
+   * @return the response buffer, positioned at 0
+   * @throws IOException
+   */
+  private ByteBuffer readResponse(long code, long chan, long data,
+    ByteBuffer response, int priority)
+    throws IOException
+  {
+    return awaitResponse(requestResponse(code, chan, data, response, priority), code);
+  }
+
+  /**
+   * Queue a read command without waiting for its response, so that more
+   * commands can be queued behind it. The device answers in order, so the
+   * responses can be awaited in the order the commands were queued.
+   *
+   * @param code
+   * @param chan
+   * @param data
+   * @param response
+   * @param priority DeviceChannel.POLL or BULK
+   * @return the queued command, to be passed to awaitResponse()
+   * @throws IOException
+   */
+  private DeviceCommand requestResponse(long code, long chan, long data,
+    ByteBuffer response, int priority)
+    throws IOException
+  {
+    checkConnected();
+
+    if (debug)
+    {
+      logDebugMessage("sendCommand - device="+id+", code="+code+", chan="+chan+", data="+data);
+    }
+
+    response.clear();
+
+    DeviceCommand cmd = deviceChannel.request(encodeCommand(code, chan, data), response,
+      priority);
+    Metrics.commandSent(code);
+
+    return cmd;
+  }
+
+  /**
+   * Wait for the response to a command queued with requestResponse().
+   *
+   * @param cmd
+   * @param code
+   * @return the response buffer, positioned at 0
+   * @throws IOException
+   */
+  private ByteBuffer awaitResponse(DeviceCommand cmd, long code)
+    throws IOException
+  {
+    ByteBuffer response;
+    try
+    {
+      response = cmd.await(RESPONSE_TIMEOUT);
+      Metrics.commandCompleted(code, System.nanoTime() - cmd.queuedAt);
+    }
+    catch (SocketTimeoutException ex)
+    {
+      Metrics.commandTimedOut();
+      // the response may still arrive, so the link can no longer be
+      // trusted and the command cannot go back to the pool
+      deviceChannel.close();
+      throw new IOException("Device "+id+" did not respond to command "+code, ex);
+    }
+    deviceChannel.release(cmd);
+
+    return response;
+  }
+
+  /**
+   * Hold the commands queued from now on until flushCommands(), so they
+   * go out to the device together. No response may be awaited in
+   * between.
+   *
+   * @throws IOException
+   */
+  private void holdCommands()
+    throws IOException
+  {
+    checkConnected();
+    deviceChannel.hold();
+  }
+
+  /**
+   * Write the commands queued since holdCommands().
+   */
+  private void flushCommands()
+  {
+    if (deviceChannel != null)
+    {
+      deviceChannel.flush();
+    }
+  }
+
+  /**
+   *
+   * @throws IOException
+   */
+  private void checkConnected()
+    throws IOException
+  {
+    if (deviceChannel == null)
+    {
+      throw new IOException("Device "+id+" not connected");
+    }
+  }
+
+  /**
+   *
+   * @param code
+   * @param chan
+   * @param data
+   * @return the 64-bit command word
+   */
+  private static long encodeCommand(long code, long chan, long data)
+  {
+    return (long)(code << SHIFT_CODE) | (validateChannel(chan)  << SHIFT_CHAN) | data;
+  }
+
+  /**
+   *
+   * @param chan
+   * @return
+   */
+  private static long validateChannel(long chan)
+  {
+    if (chan < 0)
+    {
+      return 0;
+    } else if (chan > 1)
+    {
+      return 1;
+    }
+
+    return chan;
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Services the {@link DeviceChannel}s of all connected devices with a
+ * small, fixed number of selector threads. Devices are spread over the
+ * threads round-robin as they connect.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class DeviceIOEngine
+{
+  // socket receive buffer, room for both histograms of a poll so the
+  // device never waits for the client to read
+  private static final int RECEIVE_BUFFER = 256 * 1024;
+
+  private final SelectorLoop[] loops;
+
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   *
+   * @param threads number of selector threads
+   * @throws IOException
+   */
+  public DeviceIOEngine(int threads)
+    throws IOException
+  {
+    loops = new SelectorLoop[Math.max(1, threads)];
+    for (int i=0; i<loops.length; i++)
+    {
+      loops[i] = new SelectorLoop();
+      Thread t = new Thread(loops[i], "mcpha-device-io-"+i);
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /**
+   * Connect to a device and hand the connection over to one of the
+   * selector threads.
+   *
+   * @param id
+   * @param address
+   * @param timeout connect timeout in milliseconds
+   * @return the channel
+   * @throws IOException
+   */
+  public DeviceChannel open(String id, InetSocketAddress address, int timeout)
+    throws IOException
+  {
+    SocketChannel channel = SocketChannel.open();
+    try
+    {
+      // commands are a few bytes each and something is always waiting on
+      // them, so they go out at once rather than being held back by Nagle.
+      // The receive buffer has to be set before connecting for the window
+      // to be scaled to it.
+      channel.socket().setTcpNoDelay(true);
+      channel.socket().setReceiveBufferSize(RECEIVE_BUFFER);
+      channel.socket().connect(address, timeout);
+      channel.configureBlocking(false);
+    }
+    catch (IOException ex)
+    {
+      channel.close();
+      throw ex;
+    }
+
+    SelectorLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    DeviceChannel deviceChannel = new DeviceChannel(id, channel, loop);
+    loop.register(deviceChannel);
+
+    return deviceChannel;
+  }
+
+  /**
+   * Stop the selector threads.
+   */
+  public void shutdown()
+  {
+    for (SelectorLoop loop : loops)
+    {
+      loop.shutdown();
+    }
+  }
+
+  /**
+   * One selector and the thread that runs it.
+   */
+  static class SelectorLoop implements Runnable
+  {
+    private final Selector selector;
+
+    // channels serviced by this loop, only removed by the loop's thread
+    private final CopyOnWriteArrayList<DeviceChannel> channels = new CopyOnWriteArrayList<>();
+
+    private volatile boolean running = true;
+
+    /**
+     *
+     * @throws IOException
+     */
+    SelectorLoop()
+      throws IOException
+    {
+      selector = Selector.open();
+    }
+
+    /**
+     *
+     * @param channel
+     */
+    void register(DeviceChannel channel)
+    {
+      channels.add(channel);
+      update(channel);
+    }
+
+    /**
+     * Ask the selector thread to bring the channel's registration up to
+     * date, for example after a command has been queued on it. This is
+     * called for every command so it must not allocate.
+     *
+     * @param channel
+     */
+    void update(DeviceChannel channel)
+    {
+      channel.updatePending = true;
+      selector.wakeup();
+    }
+
+    /**
+     *
+     */
+    void shutdown()
+    {
+      running = false;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+      while (running)
+      {
+        try
+        {
+          selector.select();
+
+          DeviceChannel channel;
+          for (int i=channels.size()-1; i>=0; i--)
+          {
+            channel = channels.get(i);
+            if (channel.updatePending)
+            {
+              channel.updatePending = false;
+              if (!channel.updateInterest(selector))
+              {
+                channels.remove(i);
+              }
+            }
+          }
+
+          // the selected-key set, and its iterator, are the JDK's and
+          // allocate a little on each pass
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext())
+          {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            channel = (DeviceChannel)key.attachment();
+            try
+            {
+              if (key.isValid() && key.isReadable())
+              {
+                channel.handleRead();
+              }
+              if (key.isValid() && key.isWritable())
+              {
+                channel.handleWrite();
+              }
+            }
+            catch (IOException ex)
+            {
+              channel.fail(ex);
+              // drop the channel on the next pass
+              update(channel);
+            }
+          }
+        }
+        catch (IOException ex)
+        {
+          Logger.getLogger(DeviceIOEngine.class.getName()).log(Level.SEVERE, null, ex);
+        }
+      }
+
+      try
+      {
+        selector.close();
+      }
+      catch (IOException ex)
+      {
+        Logger.getLogger(DeviceIOEngine.class.getName()).log(Level.SEVERE, null, ex);
+      }
+    }
+  }
+}
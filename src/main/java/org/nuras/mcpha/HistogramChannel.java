@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * The histogram state of one ADC channel of a device: its double buffered
+ * histogram, the timer value read with it, its ROI's and peaks and whether
+ * it is acquiring. The fields are guarded by the owning {@link DeviceConnection}.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class HistogramChannel
+{
+  static class ROI
+  {
+    final String name;
+    int start;
+    int end;
+    final RateHistory rates = new RateHistory();
+    // counts the next rate is taken from, or -1 if none
+    long rateCounts = -1;
+
+    ROI(String name, int start, int end)
+    {
+      this.name = name;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  public static final int BINS = 16384;
+
+  // bins at each edge of an ROI averaged for its background
+  public static final int ROI_EDGE_BINS = 3;
+
+  // shortest time, in seconds, a rate is taken over
+  public static final double MIN_RATE_INTERVAL = 0.1;
+
+  final int chan;
+
+  private final ByteBuffer[] buffers = new ByteBuffer[2];
+
+  private final IntBuffer[] views = new IntBuffer[2];
+
+  private int front = 0;
+
+  // last histogram read, or null if none has been
+  IntBuffer data = null;
+
+  // timer value read with data
+  double timer = 0.0;
+
+  // total counts in data
+  long counts = 0;
+
+  // timer value, in ticks, at which the device ends the run, or 0 if
+  // there is none
+  long preset = 0;
+
+  boolean acquisitionActive = false;
+
+  // log of the snapshots read during the current run, if history is logged
+  SpectrumLog log = null;
+
+  // ROI's by name, in the order they were defined
+  final Map<String, ROI> rois = new LinkedHashMap<>();
+
+  // prefix[i] is the sum of the first i bins of data, so the sum of any
+  // range of bins is a single subtraction
+  private final long[] prefix = new long[BINS + 1];
+
+  // seconds the channel is dead after each event it takes, or 0 if not
+  // known
+  double deadTimePerEvent = 0.0;
+
+  // total count rates between snapshots
+  final RateHistory rates = new RateHistory();
+
+  // timer value and counts the next rate is taken from, or -1 if none
+  private double rateTimer = -1.0;
+
+  private long rateCounts = 0;
+
+  // live and dead time since the timer was last reset, where known
+  double liveTime = 0.0;
+
+  double deadTime = 0.0;
+
+  // peaks of the last snapshot
+  final PeakSearch peakSearch = new PeakSearch();
+
+  // set when a subscriber has yet to be sent the peaks
+  volatile boolean peaksPending = false;
+
+  // binary mode subscribers that need a keyframe before they can follow
+  // this channel's delta frames
+  final Set<Session> keyframePending = ConcurrentHashMap.newKeySet();
+
+  // delta stream shared by all binary mode subscribers
+  final HistogramDeltaEncoder encoder = new HistogramDeltaEncoder();
+
+  /**
+   *
+   * @param chan
+   */
+  HistogramChannel(int chan)
+  {
+    this.chan = chan;
+
+    for (int i=0; i<2; i++)
+    {
+      buffers[i] = ByteBuffer.allocateDirect(4 * BINS).order(ByteOrder.LITTLE_ENDIAN);
+      views[i] = buffers[i].asIntBuffer();
+    }
+  }
+
+  /**
+   * Sum the bins of a histogram just read into data, once, so the total
+   * counts and the counts of every ROI can be had without touching the
+   * bins again.
+   */
+  void sumBins()
+  {
+    long sum = 0;
+    for (int i=0; i<BINS; i++)
+    {
+      sum += data.get(i) & 0xFFFFFFFFL;
+      prefix[i + 1] = sum;
+    }
+    counts = sum;
+  }
+
+  /**
+   *
+   * @param from first bin
+   * @param to last bin
+   * @return the counts in the bins from and to inclusive, as of the last
+   * call to {@link #sumBins()}
+   */
+  long sum(int from, int to)
+  {
+    return prefix[to + 1] - prefix[from];
+  }
+
+  /**
+   * Take the total and ROI count rates over the time between the snapshot
+   * just read and the last one a rate was taken from, once that is at
+   * least {@link #MIN_RATE_INTERVAL}. A timer that went backwards, or
+   * counts that went down, mean the timer or the histogram were reset, and
+   * the rates start again from the snapshot.
+   *
+   * If the dead time per event is known, the fraction of the time the
+   * channel was dead follows from the rate, taking the channel to be
+   * dead for that long after each event it counts and blind to events
+   * that arrive in the meantime.
+   *
+   * @param time wall clock time the snapshot was read, milliseconds
+   * since the epoch
+   * @return true if rates were taken
+   */
+  boolean updateRates(long time)
+  {
+    double elapsed = timer - rateTimer;
+    if (rateTimer >= 0 && elapsed >= 0 && elapsed < MIN_RATE_INTERVAL &&
+        counts >= rateCounts)
+    {
+      // too little time has passed for a rate worth having
+      return false;
+    }
+
+    boolean taken = false;
+    if (rateTimer >= 0 && elapsed >= MIN_RATE_INTERVAL && counts >= rateCounts)
+    {
+      double rate = (counts - rateCounts) / elapsed;
+      double deadFraction = Double.NaN;
+      if (deadTimePerEvent > 0)
+      {
+        deadFraction = Math.min(1.0, rate * deadTimePerEvent);
+        deadTime += elapsed * deadFraction;
+        liveTime += elapsed * (1.0 - deadFraction);
+      }
+      rates.add(time, rate, deadFraction);
+      for (ROI r : rois.values())
+      {
+        long c = sum(r.start, r.end);
+        if (r.rateCounts >= 0 && c >= r.rateCounts)
+        {
+          r.rates.add(time, (c - r.rateCounts) / elapsed, deadFraction);
+        }
+      }
+      taken = true;
+    }
+    else if (elapsed < 0 || rateTimer < 0)
+    {
+      liveTime = 0.0;
+      deadTime = 0.0;
+    }
+
+    rateTimer = timer;
+    rateCounts = counts;
+    for (ROI r : rois.values())
+    {
+      r.rateCounts = sum(r.start, r.end);
+    }
+
+    return taken;
+  }
+
+  /**
+   * The background under a range of bins is a line drawn between the mean
+   * of the {@link #ROI_EDGE_BINS} bins at either edge of it.
+   *
+   * @param start first bin
+   * @param end last bin
+   * @return the mean counts at the left and right edges of the range
+   */
+  double[] edgeMeans(int start, int end)
+  {
+    int edge = Math.max(1, Math.min(ROI_EDGE_BINS, (end - start + 1) / 2));
+
+    return new double[]{
+      (double)sum(start, start + edge - 1) / edge,
+      (double)sum(end - edge + 1, end) / edge
+    };
+  }
+
+  /**
+   *
+   * @param r
+   * @return the counts in the ROI less the background under it
+   */
+  double netArea(ROI r)
+  {
+    double[] edges = edgeMeans(r.start, r.end);
+
+    return sum(r.start, r.end) - (edges[0] + edges[1]) / 2 * (r.end - r.start + 1);
+  }
+
+  /**
+   *
+   * @return the buffer the next histogram is read into, which is never
+   * the one holding the last histogram
+   */
+  ByteBuffer backBuffer()
+  {
+    return buffers[1 - front];
+  }
+
+  /**
+   * Swap the buffers once a histogram has been read into the back buffer.
+   *
+   * @return the histogram just read
+   */
+  IntBuffer flip()
+  {
+    front = 1 - front;
+
+    return views[front];
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Keeps the last histogram sent to a session and encodes each new
+ * histogram as the sparse runs of bins that changed since then. A full
+ * keyframe is sent for the first frame, when the channel or number of bins
+ * changes, every KEYFRAME_INTERVAL frames, and whenever the delta would not
+ * be smaller than the keyframe.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class HistogramDeltaEncoder
+{
+  public static final int KEYFRAME_INTERVAL = 30;
+
+  // unchanged bins between two changed bins that are cheaper to send as
+  // zero differences than as the header of a new run
+  private static final int MAX_RUN_GAP = 1;
+
+  private int[] last = null;
+
+  private int chan = -1;
+
+  private int framesSinceKeyframe = 0;
+
+  /**
+   * Encode the histogram as either a keyframe or a delta against the
+   * previously encoded histogram.
+   *
+   * @param device
+   * @param chan
+   * @param timer
+   * @param sequence
+   * @param data
+   * @return the encoded frame, positioned at 0
+   */
+  public ByteBuffer encode(int device, int chan, double timer, int sequence,
+    IntBuffer data)
+  {
+    int bins = data.capacity();
+
+    if (last == null || last.length != bins || this.chan != chan ||
+        framesSinceKeyframe >= KEYFRAME_INTERVAL)
+    {
+      return keyframe(device, chan, timer, sequence, data);
+    }
+
+    // first pass, size the delta frame
+    int runs = 0, values = 0;
+    for (int i=0; i<bins; )
+    {
+      if (data.get(i) == last[i])
+      {
+        i++;
+        continue;
+      }
+      int end = runEnd(data, i, bins);
+      runs++;
+      values += end - i;
+      i = end;
+    }
+
+    int size = BinaryFrame.HEADER_SIZE + runs * BinaryFrame.RUN_HEADER_SIZE + values * 4;
+    if (size >= BinaryFrame.HEADER_SIZE + bins * 4)
+    {
+      return keyframe(device, chan, timer, sequence, data);
+    }
+
+    // second pass, write the runs and remember what was sent
+    ByteBuffer frame = ByteBuffer.allocate(size);
+    frame.order(ByteOrder.LITTLE_ENDIAN);
+    BinaryFrame.putHeader(frame, BinaryFrame.FRAME_HISTOGRAM_DELTA, device,
+      chan, sequence, timer, runs);
+
+    for (int i=0; i<bins; )
+    {
+      if (data.get(i) == last[i])
+      {
+        i++;
+        continue;
+      }
+      int end = runEnd(data, i, bins);
+      frame.putShort((short)i);
+      frame.putShort((short)(end - i));
+      for (; i<end; i++)
+      {
+        int y = data.get(i);
+        frame.putInt(y - last[i]);
+        last[i] = y;
+      }
+    }
+    frame.flip();
+
+    framesSinceKeyframe++;
+
+    return frame;
+  }
+
+  /**
+   * Force the next encoded frame to be a keyframe.
+   */
+  public void reset()
+  {
+    last = null;
+  }
+
+  /**
+   *
+   * @param device
+   * @param chan
+   * @param timer
+   * @param sequence
+   * @param data
+   * @return
+   */
+  private ByteBuffer keyframe(int device, int chan, double timer, int sequence,
+    IntBuffer data)
+  {
+    int bins = data.capacity();
+
+    if (last == null || last.length != bins)
+    {
+      last = new int[bins];
+    }
+    for (int i=0; i<bins; i++)
+    {
+      last[i] = data.get(i);
+    }
+
+    this.chan = chan;
+    framesSinceKeyframe = 0;
+
+    return BinaryFrame.encodeHistogram(device, chan, timer, sequence, data);
+  }
+
+  /**
+   * Return the index one past the last bin of the run of changed bins
+   * starting at start.
+   *
+   * @param data
+   * @param start
+   * @param bins
+   * @return
+   */
+  private int runEnd(IntBuffer data, int start, int bins)
+  {
+    int end = start + 1;
+    int gap = 0;
+
+    for (int i=end; i<bins && gap<=MAX_RUN_GAP && i-start<0xFFFF; i++)
+    {
+      if (data.get(i) != last[i])
+      {
+        end = i + 1;
+        gap = 0;
+      }
+      else
+      {
+        gap++;
+      }
+    }
+
+    return end;
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * The part of the histogram a client is looking at: a range of bins and
+ * the number of points it has room to draw. When the range holds more
+ * bins than points the histogram is reduced on the server, either by
+ * summing adjacent bins (MODE_SUM) or by keeping the lowest and highest
+ * bin of each group (MODE_MINMAX) so that peaks survive. When zoomed in
+ * far enough every bin in the range is sent as is.
+ *
+ * Views are immutable and compare equal when they would produce the same
+ * series, so that sessions looking at the same view share one encoding.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class HistogramView
+{
+  public static final int MODE_MINMAX = 0;
+
+  public static final int MODE_SUM = 1;
+
+  public static final int MIN_POINTS = 16;
+
+  public final int from;
+
+  public final int to;
+
+  public final int points;
+
+  public final int mode;
+
+  /**
+   *
+   * @param from first bin
+   * @param to last bin
+   * @param points maximum number of points to return
+   * @param mode MODE_MINMAX or MODE_SUM
+   */
+  public HistogramView(int from, int to, int points, int mode)
+  {
+    this.from = Math.max(0, Math.min(from, to));
+    this.to = Math.max(from, to);
+    this.points = Math.max(MIN_POINTS, points);
+    this.mode = mode == MODE_SUM ? MODE_SUM : MODE_MINMAX;
+  }
+
+  /**
+   *
+   * @param mode
+   * @return the mode for the name used in websocket commands
+   */
+  public static int parseMode(String mode)
+  {
+    return "sum".equals(mode) ? MODE_SUM : MODE_MINMAX;
+  }
+
+  /**
+   * Reduce the histogram to at most points (bin, count) pairs.
+   *
+   * @param data
+   * @param x receives the bin of each point, sized for points
+   * @param y receives the count of each point, sized for points
+   * @return the number of points
+   */
+  public int sample(IntBuffer data, int[] x, long[] y)
+  {
+    int first = Math.min(from, data.capacity()-1);
+    int last = Math.min(to, data.capacity()-1);
+    int bins = last - first + 1;
+    int n = 0;
+
+    if (bins <= points)
+    {
+      // zoomed in far enough to send every bin
+      for (int i=first; i<=last; i++, n++)
+      {
+        x[n] = i;
+        y[n] = data.get(i) & 0xFFFFFFFFL;
+      }
+    }
+    else if (mode == MODE_SUM)
+    {
+      int step = (bins + points - 1) / points;
+      for (int b=first; b<=last; b+=step, n++)
+      {
+        long sum = 0;
+        for (int i=b, e=Math.min(b+step-1, last); i<=e; i++)
+        {
+          sum += data.get(i) & 0xFFFFFFFFL;
+        }
+        x[n] = b;
+        y[n] = sum;
+      }
+    }
+    else
+    {
+      // two points per group, in bin order
+      int groups = points / 2;
+      int step = (bins + groups - 1) / groups;
+      for (int b=first; b<=last; b+=step)
+      {
+        int imin = b, imax = b;
+        long min = data.get(b) & 0xFFFFFFFFL, max = min;
+        for (int i=b+1, e=Math.min(b+step-1, last); i<=e; i++)
+        {
+          long v = data.get(i) & 0xFFFFFFFFL;
+          if (v < min)
+          {
+            min = v;
+            imin = i;
+          }
+          if (v > max)
+          {
+            max = v;
+            imax = i;
+          }
+        }
+        if (imin == imax)
+        {
+          x[n] = imin;
+          y[n++] = min;
+        }
+        else if (imin < imax)
+        {
+          x[n] = imin;
+          y[n++] = min;
+          x[n] = imax;
+          y[n++] = max;
+        }
+        else
+        {
+          x[n] = imax;
+          y[n++] = max;
+          x[n] = imin;
+          y[n++] = min;
+        }
+      }
+    }
+
+    return n;
+  }
+
+  /**
+   * Write the view as a JSON array of [bin, count] pairs.
+   *
+   * @param out
+   * @param data
+   */
+  public void writeJSON(JsonWriter out, IntBuffer data)
+  {
+    int[] x = new int[points];
+    long[] y = new long[points];
+    int n = sample(data, x, y);
+
+    out.points(x, y, n);
+  }
+
+  /**
+   * Encode the view as a FRAME_HISTOGRAM_VIEW binary frame.
+   *
+   * @param device
+   * @param chan
+   * @param timer
+   * @param sequence
+   * @param data
+   * @return the encoded frame, positioned at 0
+   */
+  public ByteBuffer encode(int device, int chan, double timer, int sequence,
+    IntBuffer data)
+  {
+    int[] x = new int[points];
+    long[] y = new long[points];
+    int n = sample(data, x, y);
+
+    ByteBuffer frame = ByteBuffer.allocate(BinaryFrame.HEADER_SIZE + 8 * n);
+    frame.order(ByteOrder.LITTLE_ENDIAN);
+    BinaryFrame.putHeader(frame, BinaryFrame.FRAME_HISTOGRAM_VIEW, device,
+      chan, sequence, timer, n);
+    for (int i=0; i<n; i++)
+    {
+      frame.putInt(x[i]);
+      // sums of many bins saturate rather than wrap
+      frame.putInt((int)Math.min(y[i], 0xFFFFFFFFL));
+    }
+    frame.flip();
+
+    return frame;
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (!(o instanceof HistogramView))
+    {
+      return false;
+    }
+    HistogramView v = (HistogramView)o;
+
+    return from == v.from && to == v.to && points == v.points && mode == v.mode;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return ((from * 31 + to) * 31 + points) * 31 + mode;
+  }
+}
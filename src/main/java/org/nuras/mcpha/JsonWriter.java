@@ -0,0 +1,363 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+/**
+ * Writes JSON text straight into a buffer that is kept from one message
+ * to the next, for the large messages pushed to JSON sessions. Numbers
+ * and strings come out exactly as org.json writes them, so a message
+ * written with the fields in the order org.json puts them is the same,
+ * character for character, as one built from JSONObjects, without a
+ * JSONArray per data point.
+ *
+ * The caller writes the structure: a name is preceded by a comma unless it
+ * is the first in its object.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class JsonWriter
+{
+  private static final long[] POWERS_OF_TEN = new long[19];
+
+  static
+  {
+    long p = 1;
+    for (int i=0; i<POWERS_OF_TEN.length; i++)
+    {
+      POWERS_OF_TEN[i] = p;
+      p *= 10;
+    }
+  }
+
+  private char[] buf;
+
+  private int length = 0;
+
+  /**
+   *
+   * @param capacity initial size of the buffer, in characters
+   */
+  public JsonWriter(int capacity)
+  {
+    buf = new char[Math.max(64, capacity)];
+  }
+
+  /**
+   * Start a new message, keeping the buffer.
+   *
+   * @return this writer
+   */
+  public JsonWriter clear()
+  {
+    length = 0;
+
+    return this;
+  }
+
+  /**
+   *
+   * @param c
+   * @return this writer
+   */
+  public JsonWriter raw(char c)
+  {
+    ensure(1);
+    buf[length++] = c;
+
+    return this;
+  }
+
+  /**
+   *
+   * @param s text to write as it is
+   * @return this writer
+   */
+  public JsonWriter raw(String s)
+  {
+    int n = s.length();
+    ensure(n);
+    s.getChars(0, n, buf, length);
+    length += n;
+
+    return this;
+  }
+
+  /**
+   *
+   * @return the last character written, or 0 if there is none
+   */
+  public char last()
+  {
+    return length > 0 ? buf[length - 1] : 0;
+  }
+
+  /**
+   * Write the name of a field, and the comma before it if it is not the
+   * first in its object.
+   *
+   * @param name
+   * @return this writer
+   */
+  public JsonWriter name(String name)
+  {
+    if (length > 0 && last() != '{')
+    {
+      raw(',');
+    }
+
+    return string(name).raw(':');
+  }
+
+  /**
+   * Write a quoted string, escaped as org.json escapes it.
+   *
+   * @param s
+   * @return this writer
+   */
+  public JsonWriter string(String s)
+  {
+    int n = s.length();
+    // room for every character to be escaped
+    ensure(6 * n + 2);
+    buf[length++] = '"';
+    char b, c = 0;
+    for (int i=0; i<n; i++)
+    {
+      b = c;
+      c = s.charAt(i);
+      switch (c)
+      {
+        case '\\':
+        case '"':
+          buf[length++] = '\\';
+          buf[length++] = c;
+          break;
+        case '/':
+          if (b == '<')
+          {
+            buf[length++] = '\\';
+          }
+          buf[length++] = c;
+          break;
+        case '\b':
+          buf[length++] = '\\';
+          buf[length++] = 'b';
+          break;
+        case '\t':
+          buf[length++] = '\\';
+          buf[length++] = 't';
+          break;
+        case '\n':
+          buf[length++] = '\\';
+          buf[length++] = 'n';
+          break;
+        case '\f':
+          buf[length++] = '\\';
+          buf[length++] = 'f';
+          break;
+        case '\r':
+          buf[length++] = '\\';
+          buf[length++] = 'r';
+          break;
+        default:
+          if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100'))
+          {
+            buf[length++] = '\\';
+            buf[length++] = 'u';
+            for (int shift=12; shift>=0; shift-=4)
+            {
+              buf[length++] = Character.forDigit((c >> shift) & 0xF, 16);
+            }
+          }
+          else
+          {
+            buf[length++] = c;
+          }
+      }
+    }
+    buf[length++] = '"';
+
+    return this;
+  }
+
+  /**
+   *
+   * @param v
+   * @return this writer
+   */
+  public JsonWriter value(long v)
+  {
+    if (v == Long.MIN_VALUE)
+    {
+      return raw(Long.toString(v));
+    }
+    ensure(20);
+    if (v < 0)
+    {
+      buf[length++] = '-';
+      v = -v;
+    }
+    int n = 1;
+    while (n < POWERS_OF_TEN.length && v >= POWERS_OF_TEN[n])
+    {
+      n++;
+    }
+    for (int i=length+n-1; i>=length; i--)
+    {
+      buf[i] = (char)('0' + v % 10);
+      v /= 10;
+    }
+    length += n;
+
+    return this;
+  }
+
+  /**
+   *
+   * @param v a finite number
+   * @return this writer
+   */
+  public JsonWriter value(double v)
+  {
+    return raw(JSONObject.numberToString(v));
+  }
+
+  /**
+   * Write the number with two decimal places, rounding half up, as
+   * String.format("%.2f") does.
+   *
+   * @param v
+   * @return this writer
+   */
+  public JsonWriter twoDecimals(double v)
+  {
+    double scaled = v * 100;
+    // the product is off by up to an ulp, which only matters so close to
+    // half way, or it may not fit a long
+    double fraction = scaled - Math.floor(scaled);
+    if (Double.doubleToRawLongBits(v) < 0 || !(scaled < 1e17) ||
+        Math.abs(fraction - 0.5) < 1e-6)
+    {
+      return raw(String.format("%.2f", v));
+    }
+
+    long r = Math.round(scaled);
+    value(r / 100);
+    ensure(3);
+    buf[length++] = '.';
+    buf[length++] = (char)('0' + (r / 10) % 10);
+    buf[length++] = (char)('0' + r % 10);
+
+    return this;
+  }
+
+  /**
+   * Write the bins as an array of [bin, count] points.
+   *
+   * @param data
+   * @return this writer
+   */
+  public JsonWriter points(IntBuffer data)
+  {
+    raw('[');
+    for (int i=0; i<data.capacity(); i++)
+    {
+      if (i > 0)
+      {
+        raw(',');
+      }
+      raw('[').value(i).raw(',').value(data.get(i)).raw(']');
+    }
+
+    return raw(']');
+  }
+
+  /**
+   * Write the points as an array of [x, y] points.
+   *
+   * @param x
+   * @param y
+   * @param n number of points
+   * @return this writer
+   */
+  public JsonWriter points(int[] x, long[] y, int n)
+  {
+    raw('[');
+    for (int i=0; i<n; i++)
+    {
+      if (i > 0)
+      {
+        raw(',');
+      }
+      raw('[').value(x[i]).raw(',').value(y[i]).raw(']');
+    }
+
+    return raw(']');
+  }
+
+  /**
+   * Write every stride'th sample, from the first, as an array of
+   * [index, sample] points.
+   *
+   * @param data
+   * @param first
+   * @param stride
+   * @return this writer
+   */
+  public JsonWriter points(ShortBuffer data, int first, int stride)
+  {
+    raw('[');
+    for (int i=first,n=0; i<data.capacity(); i+=stride,n++)
+    {
+      if (n > 0)
+      {
+        raw(',');
+      }
+      raw('[').value(n).raw(',').value(data.get(i)).raw(']');
+    }
+
+    return raw(']');
+  }
+
+  /**
+   *
+   * @return the text written since the writer was cleared
+   */
+  @Override
+  public String toString()
+  {
+    return new String(buf, 0, length);
+  }
+
+  /**
+   * Grow the buffer, if need be, to take n more characters.
+   *
+   * @param n
+   */
+  private void ensure(int n)
+  {
+    if (length + n > buf.length)
+    {
+      buf = Arrays.copyOf(buf, Math.max(length + n, 2 * buf.length));
+    }
+  }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * Counters and latency histograms of the device links, the histogram
+ * pushes and the websocket sends, written out in the Prometheus text
+ * exposition format by the /metrics route. Recording a value is a few
+ * uncontended adds, so it is left on all the time.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class Metrics
+{
+  /**
+   * A latency histogram with fixed buckets, from 50us to 10s.
+   */
+  public static class Latency
+  {
+    private static final double[] BOUNDS = new double[]{
+      0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025,
+      0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0};
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    private static final String[] BOUND_LABELS = new String[BOUNDS.length];
+
+    static
+    {
+      for (int i=0; i<BOUNDS.length; i++)
+      {
+        BOUNDS_NANOS[i] = (long)(BOUNDS[i] * 1e9);
+        BOUND_LABELS[i] = BigDecimal.valueOf(BOUNDS[i]).stripTrailingZeros().toPlainString();
+      }
+    }
+
+    // the last bucket counts values above the largest bound
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    public Latency()
+    {
+      for (int i=0; i<buckets.length; i++)
+      {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    /**
+     *
+     * @param nanos
+     */
+    public void observe(long nanos)
+    {
+      int i = 0;
+      while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i])
+      {
+        i++;
+      }
+      buckets[i].increment();
+      count.increment();
+      sum.add(nanos);
+    }
+
+    /**
+     *
+     * @return the number of values observed
+     */
+    public long getCount()
+    {
+      return count.sum();
+    }
+
+    /**
+     *
+     * @param out
+     * @param name
+     * @param labels label pairs, without braces, or an empty string
+     */
+    void write(StringBuilder out, String name, String labels)
+    {
+      String sep = labels.isEmpty() ? "" : ",";
+      long cumulative = 0;
+      for (int i=0; i<BOUNDS.length; i++)
+      {
+        cumulative += buckets[i].sum();
+        out.append(name).append("_bucket{").append(labels).append(sep)
+           .append("le=\"").append(BOUND_LABELS[i]).append("\"} ").append(cumulative).append('\n');
+      }
+      cumulative += buckets[BOUNDS.length].sum();
+      out.append(name).append("_bucket{").append(labels).append(sep)
+         .append("le=\"+Inf\"} ").append(cumulative).append('\n');
+      String braces = labels.isEmpty() ? "" : "{"+labels+"}";
+      out.append(name).append("_sum").append(braces).append(' ')
+         .append(sum.sum() / 1e9).append('\n');
+      out.append(name).append("_count").append(braces).append(' ')
+         .append(cumulative).append('\n');
+    }
+  }
+
+  // names of the command codes, indexed by code
+  private static final String[] COMMAND_NAMES = new String[]{
+    "reset_timer", "reset_histogram", "reset_oscilloscope", "reset_generator",
+    "set_sample_rate", "set_negator_mode", "set_baseline_mode",
+    "set_baseline_level", "set_pha_delay", "set_pha_min_threshold",
+    "set_pha_max_threshold", "set_timer_value", "set_timer_mode",
+    "read_timer", "read_histogram_data", "set_trigger_source",
+    "set_trigger_slope", "set_trigger_mode", "set_trigger_level",
+    "set_number_of_samples_before_trigger",
+    "set_total_number_of_samples_to_acquire", "start_oscilloscope",
+    "read_oscilloscope_status", "read_oscilloscope_data"};
+
+  // phases of a histogram push
+  public static final int PHASE_IO = 0;
+
+  public static final int PHASE_LOG = 1;
+
+  public static final int PHASE_ENCODE = 2;
+
+  public static final int PHASE_SEND = 3;
+
+  private static final String[] PHASES = new String[]{"io", "log", "encode", "send"};
+
+  private static final LongAdder[] commands = adders(COMMAND_NAMES.length);
+
+  // time from queueing a read command to its response being read
+  private static final Latency[] commandLatency = latencies(COMMAND_NAMES.length);
+
+  private static final LongAdder commandTimeouts = new LongAdder();
+
+  private static final String[] PRIORITY_CLASSES = new String[]{"control", "poll", "bulk"};
+
+  // time from queueing a command to writing it, by priority class
+  private static final Latency[] commandQueueing = latencies(PRIORITY_CLASSES.length);
+
+  private static final LongAdder deviceBytesRead = new LongAdder();
+
+  private static final LongAdder deviceBytesWritten = new LongAdder();
+
+  // writes to devices, each of one or more command frames
+  private static final LongAdder deviceWrites = new LongAdder();
+
+  private static final Latency[] pushPhases = latencies(PHASES.length);
+
+  // difference between when a poll started and when it was due
+  private static final Latency pollJitter = new Latency();
+
+  private static final LongAdder textMessages = new LongAdder();
+
+  private static final LongAdder binaryMessages = new LongAdder();
+
+  private static final LongAdder bytesSent = new LongAdder();
+
+  private static final LongAdder sendFailures = new LongAdder();
+
+  // frames replaced in a send queue by a newer one before they were sent
+  private static final LongAdder framesReplaced = new LongAdder();
+
+  private static final LongAdder slowSessionsClosed = new LongAdder();
+
+  // messages being written to each session
+  private static final Map<Session, AtomicInteger> sendDepth =
+    new ConcurrentHashMap<>();
+
+  /**
+   *
+   * @param code
+   */
+  public static void commandSent(long code)
+  {
+    if (code >= 0 && code < commands.length)
+    {
+      commands[(int)code].increment();
+    }
+  }
+
+  /**
+   *
+   * @param code
+   * @param nanos time from queueing the command to its response being read
+   */
+  public static void commandCompleted(long code, long nanos)
+  {
+    if (code >= 0 && code < commandLatency.length)
+    {
+      commandLatency[(int)code].observe(nanos);
+    }
+  }
+
+  /**
+   *
+   * @param priority the command's priority class
+   * @param nanos time from queueing the command to writing it
+   */
+  public static void commandQueued(int priority, long nanos)
+  {
+    commandQueueing[priority].observe(nanos);
+  }
+
+  public static void commandTimedOut()
+  {
+    commandTimeouts.increment();
+  }
+
+  /**
+   *
+   * @param n
+   */
+  public static void deviceBytesRead(long n)
+  {
+    deviceBytesRead.add(n);
+  }
+
+  /**
+   *
+   * @param n
+   */
+  public static void deviceBytesWritten(long n)
+  {
+    deviceBytesWritten.add(n);
+  }
+
+  public static void deviceWrite()
+  {
+    deviceWrites.increment();
+  }
+
+  /**
+   *
+   * @param phase one of the PHASE_ constants
+   * @param nanos
+   */
+  public static void pushPhase(int phase, long nanos)
+  {
+    pushPhases[phase].observe(nanos);
+  }
+
+  /**
+   *
+   * @param nanos how late the poll started
+   */
+  public static void pollJitter(long nanos)
+  {
+    pollJitter.observe(Math.abs(nanos));
+  }
+
+  /**
+   * Count a message about to be sent to the session.
+   *
+   * @param user
+   * @param binary
+   * @param bytes size of the message, in characters for text messages
+   */
+  public static void sendStarted(Session user, boolean binary, long bytes)
+  {
+    (binary ? binaryMessages : textMessages).increment();
+    bytesSent.add(bytes);
+    if (user.isOpen())
+    {
+      // not for a session that is closing, which may already be forgotten
+      sendDepth.computeIfAbsent(user, k -> new AtomicInteger()).incrementAndGet();
+    }
+  }
+
+  /**
+   *
+   * @param user
+   * @param failed
+   */
+  public static void sendFinished(Session user, boolean failed)
+  {
+    if (failed)
+    {
+      sendFailures.increment();
+    }
+    AtomicInteger depth = sendDepth.get(user);
+    if (depth != null)
+    {
+      depth.decrementAndGet();
+    }
+  }
+
+  public static void frameReplaced()
+  {
+    framesReplaced.increment();
+  }
+
+  public static void slowSessionClosed()
+  {
+    slowSessionsClosed.increment();
+  }
+
+  /**
+   * Forget a session that has gone.
+   *
+   * @param user
+   */
+  public static void removeSession(Session user)
+  {
+    sendDepth.remove(user);
+  }
+
+  /**
+   *
+   * @return every metric in the Prometheus text format
+   */
+  public static String scrape()
+  {
+    StringBuilder out = new StringBuilder(16384);
+
+    header(out, "mcpha_device_commands_total", "counter",
+      "Commands sent to devices, by command.");
+    for (int i=0; i<commands.length; i++)
+    {
+      out.append("mcpha_device_commands_total{command=\"").append(COMMAND_NAMES[i])
+         .append("\"} ").append(commands[i].sum()).append('\n');
+    }
+
+    header(out, "mcpha_device_command_seconds", "histogram",
+      "Time from sending a read command to its response being read, by command.");
+    for (int i=0; i<commandLatency.length; i++)
+    {
+      if (commandLatency[i].getCount() > 0)
+      {
+        commandLatency[i].write(out, "mcpha_device_command_seconds",
+          "command=\""+COMMAND_NAMES[i]+"\"");
+      }
+    }
+
+    header(out, "mcpha_device_command_queue_seconds", "histogram",
+      "Time from queueing a device command to writing it, by priority class.");
+    for (int i=0; i<PRIORITY_CLASSES.length; i++)
+    {
+      commandQueueing[i].write(out, "mcpha_device_command_queue_seconds",
+        "class=\""+PRIORITY_CLASSES[i]+"\"");
+    }
+
+    header(out, "mcpha_device_command_timeouts_total", "counter",
+      "Read commands the device did not answer in time.");
+    out.append("mcpha_device_command_timeouts_total ").append(commandTimeouts.sum()).append('\n');
+
+    header(out, "mcpha_device_read_bytes_total", "counter", "Bytes read from devices.");
+    out.append("mcpha_device_read_bytes_total ").append(deviceBytesRead.sum()).append('\n');
+
+    header(out, "mcpha_device_written_bytes_total", "counter", "Bytes written to devices.");
+    out.append("mcpha_device_written_bytes_total ").append(deviceBytesWritten.sum()).append('\n');
+
+    header(out, "mcpha_device_writes_total", "counter",
+      "Writes to devices, each carrying every command frame waiting to go out.");
+    out.append("mcpha_device_writes_total ").append(deviceWrites.sum()).append('\n');
+
+    header(out, "mcpha_histogram_push_seconds", "histogram",
+      "Time each histogram push spends reading the device, logging, encoding and sending.");
+    for (int i=0; i<PHASES.length; i++)
+    {
+      pushPhases[i].write(out, "mcpha_histogram_push_seconds", "phase=\""+PHASES[i]+"\"");
+    }
+
+    header(out, "mcpha_poll_jitter_seconds", "histogram",
+      "Difference between when an acquisition poll started and when it was due.");
+    pollJitter.write(out, "mcpha_poll_jitter_seconds", "");
+
+    header(out, "mcpha_websocket_messages_total", "counter",
+      "Messages sent to websocket sessions, by type.");
+    out.append("mcpha_websocket_messages_total{type=\"text\"} ").append(textMessages.sum()).append('\n');
+    out.append("mcpha_websocket_messages_total{type=\"binary\"} ").append(binaryMessages.sum()).append('\n');
+
+    header(out, "mcpha_websocket_sent_bytes_total", "counter",
+      "Bytes of binary messages and characters of text messages sent to websocket sessions.");
+    out.append("mcpha_websocket_sent_bytes_total ").append(bytesSent.sum()).append('\n');
+
+    header(out, "mcpha_websocket_send_failures_total", "counter",
+      "Messages that could not be sent.");
+    out.append("mcpha_websocket_send_failures_total ").append(sendFailures.sum()).append('\n');
+
+    header(out, "mcpha_websocket_replaced_frames_total", "counter",
+      "Frames replaced by a newer frame before they were sent.");
+    out.append("mcpha_websocket_replaced_frames_total ").append(framesReplaced.sum()).append('\n');
+
+    header(out, "mcpha_websocket_slow_sessions_closed_total", "counter",
+      "Sessions closed because too much was waiting to be sent to them.");
+    out.append("mcpha_websocket_slow_sessions_closed_total ").append(slowSessionsClosed.sum()).append('\n');
+
+    header(out, "mcpha_websocket_sessions", "gauge", "Open websocket sessions.");
+    out.append("mcpha_websocket_sessions ").append(Client.userUsernameMap.size()).append('\n');
+
+    header(out, "mcpha_websocket_send_queue_depth", "gauge",
+      "Messages being written to each session.");
+    for (Map.Entry<Session, String> e : Client.userUsernameMap.entrySet())
+    {
+      AtomicInteger depth = sendDepth.get(e.getKey());
+      out.append("mcpha_websocket_send_queue_depth{session=\"").append(e.getValue())
+         .append("\"} ").append(depth != null ? depth.get() : 0).append('\n');
+    }
+
+    header(out, "mcpha_websocket_queued_bytes", "gauge",
+      "Bytes, or characters of text messages, waiting to be sent to each session.");
+    for (Map.Entry<Session, String> e : Client.userUsernameMap.entrySet())
+    {
+      SendQueue queue = Client.sendQueues.get(e.getKey());
+      out.append("mcpha_websocket_queued_bytes{session=\"").append(e.getValue())
+         .append("\"} ").append(queue != null ? queue.getQueuedBytes() : 0).append('\n');
+    }
+
+    header(out, "mcpha_devices_connected", "gauge", "Devices with an open link.");
+    long connected = Client.devices.values().stream()
+      .filter(DeviceConnection::isConnected).count();
+    out.append("mcpha_devices_connected ").append(connected).append('\n');
+
+    return out.toString();
+  }
+
+  /**
+   *
+   * @param out
+   * @param name
+   * @param type
+   * @param help
+   */
+  private static void header(StringBuilder out, String name, String type, String help)
+  {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  /**
+   *
+   * @param n
+   * @return n new adders
+   */
+  private static LongAdder[] adders(int n)
+  {
+    LongAdder[] a = new LongAdder[n];
+    for (int i=0; i<n; i++)
+    {
+      a[i] = new LongAdder();
+    }
+
+    return a;
+  }
+
+  /**
+   *
+   * @param n
+   * @return n new latency histograms
+   */
+  private static Latency[] latencies(int n)
+  {
+    Latency[] a = new Latency[n];
+    for (int i=0; i<n; i++)
+    {
+      a[i] = new Latency();
+    }
+
+    return a;
+  }
+}
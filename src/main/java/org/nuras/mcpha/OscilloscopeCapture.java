@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+import java.nio.ShortBuffer;
+
+/**
+ * An oscilloscope capture, run as a small state machine:
+ *
+ * <pre>
+ *   ARM  - program the trigger and sample counts and start the scope
+ *   WAIT - poll the scope status until the capture is done, starting
+ *          with a short interval and backing off up to MAX_POLL_DELAY
+ *   READ - read the samples
+ * </pre>
+ *
+ * The device is only locked for the duration of each step, never while
+ * waiting between status polls, so histogram polling and other commands
+ * carry on while the scope waits for a trigger. If the capture is not done
+ * by the deadline then in auto trigger mode whatever has been captured is
+ * read anyway, and in normal mode the capture ends without data.
+ *
+ * The steps are run as steps of a {@link ScheduledJob}, so no thread is
+ * held between them. A capture can be re-armed with {@link #reset()} once
+ * it is done, which is how {@link OscilloscopeStream} captures trace after
+ * trace.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class OscilloscopeCapture
+{
+  enum State
+  {
+    ARM, WAIT, READ, DONE
+  }
+
+  // status bit set while the scope is still capturing
+  public static final int STATUS_RUNNING = 0x1;
+
+  public static final long MIN_POLL_DELAY = 1L;
+
+  public static final long MAX_POLL_DELAY = 50L;
+
+  // milliseconds to wait for a trigger before giving up (normal mode) or
+  // reading the samples regardless (auto mode)
+  public static final long NORMAL_TRIGGER_TIMEOUT = 5000L;
+
+  public static final long AUTO_TRIGGER_TIMEOUT = 500L;
+
+  private final DeviceConnection device;
+
+  private final boolean autoTrigger;
+
+  private final int triggerLevel;
+
+  private final boolean fallingSlope;
+
+  private final int triggerSource;
+
+  private State state = State.ARM;
+
+  private long deadline = 0L;
+
+  private long pollDelay = MIN_POLL_DELAY;
+
+  private ShortBuffer data = null;
+
+  /**
+   *
+   * @param device
+   * @param trigger_mode "n" for normal, "a" for auto
+   * @param trigger_level
+   * @param trigger_slope "r" for rising, "f" for falling
+   * @param trigger_source 1 for channel 1, 2 for channel 2
+   */
+  public OscilloscopeCapture(DeviceConnection device, String trigger_mode,
+    int trigger_level, String trigger_slope, int trigger_source)
+  {
+    this.device = device;
+    this.autoTrigger = "a".equals(trigger_mode);
+    this.triggerLevel = trigger_level;
+    this.fallingSlope = "f".equals(trigger_slope);
+    this.triggerSource = trigger_source == 2 ? 1 : 0;
+  }
+
+  /**
+   * Perform the next step of the capture.
+   *
+   * @return milliseconds to wait before the next step, or -1 when the
+   * capture is over
+   * @throws IOException
+   */
+  public long step()
+    throws IOException
+  {
+    switch (state)
+    {
+      case ARM:
+        device.armOscilloscope(triggerSource, fallingSlope, autoTrigger, triggerLevel);
+        deadline = System.currentTimeMillis() +
+          (autoTrigger ? AUTO_TRIGGER_TIMEOUT : NORMAL_TRIGGER_TIMEOUT);
+        pollDelay = MIN_POLL_DELAY;
+        state = State.WAIT;
+        return pollDelay;
+
+      case WAIT:
+        int status = device.mcphaReadOscilloscopeStatus();
+        Client.logDebugMessage("Oscilloscope status:"+status);
+        if ((status & STATUS_RUNNING) == 0)
+        {
+          state = State.READ;
+          return 0;
+        }
+        if (System.currentTimeMillis() >= deadline)
+        {
+          if (autoTrigger)
+          {
+            state = State.READ;
+            return 0;
+          }
+          state = State.DONE;
+          return -1;
+        }
+        pollDelay = Math.min(pollDelay * 2, MAX_POLL_DELAY);
+        return Math.min(pollDelay,
+          Math.max(0, deadline - System.currentTimeMillis()));
+
+      case READ:
+        data = device.mcphaGetOsilloscopeData();
+        state = State.DONE;
+        return -1;
+
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Get ready to capture again with the same trigger settings.
+   */
+  public void reset()
+  {
+    state = State.ARM;
+    data = null;
+  }
+
+  /**
+   *
+   * @return true once the capture is over
+   */
+  public boolean isDone()
+  {
+    return state == State.DONE;
+  }
+
+  /**
+   *
+   * @return the captured samples once the capture is done, or null if the
+   * scope did not trigger
+   */
+  public ShortBuffer getData()
+  {
+    return data;
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Captures oscilloscope traces back to back and pushes each one to the
+ * device's subscribers. The scope is re-armed as soon as a trace has been
+ * read, before the trace is pushed, so the board captures the next trace
+ * while the last one is being sent. Traces are read into the device's two
+ * oscilloscope buffers in turn, so a trace is never overwritten while it
+ * is being encoded. Each step of the capture is a step of the job, so the
+ * stream holds no thread while the scope waits for a trigger.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class OscilloscopeStream extends ScheduledJob
+{
+  private final DeviceConnection device;
+
+  private final OscilloscopeCapture capture;
+
+  private final int channels;
+
+  private int sequence = 0;
+
+  /**
+   *
+   * @param device
+   * @param channels bit 0 for channel 1 and bit 1 for channel 2
+   * @param trigger_mode "n" for normal, "a" for auto
+   * @param trigger_level
+   * @param trigger_slope "r" for rising, "f" for falling
+   * @param trigger_source 1 for channel 1, 2 for channel 2
+   */
+  public OscilloscopeStream(DeviceConnection device, int channels,
+    String trigger_mode, int trigger_level, String trigger_slope,
+    int trigger_source)
+  {
+    this.device = device;
+    this.channels = channels;
+    this.capture = new OscilloscopeCapture(device, trigger_mode, trigger_level,
+      trigger_slope, trigger_source);
+  }
+
+  /**
+   * Take the next step of the capture, pushing the trace once it has been
+   * read and the scope re-armed.
+   *
+   * @return milliseconds to wait before the next step, or -1 if the device
+   * failed
+   */
+  @Override
+  protected long step()
+  {
+    try
+    {
+      long delay = capture.step();
+      if (delay >= 0)
+      {
+        return delay;
+      }
+
+      // a normal mode capture that did not trigger has no data, and is
+      // simply re-armed
+      ShortBuffer data = capture.getData();
+      capture.reset();
+      if (isCancelled())
+      {
+        return -1;
+      }
+      delay = capture.step();
+
+      if (data != null)
+      {
+        device.pushOscilloscopeData(channels, sequence++, data);
+      }
+
+      return delay;
+    }
+    catch (IOException ex)
+    {
+      Logger.getLogger(OscilloscopeStream.class.getName()).log(Level.SEVERE, null, ex);
+      return -1;
+    }
+  }
+
+  @Override
+  protected void finished()
+  {
+    device.oscilloscopeStreamStopped(this);
+  }
+}
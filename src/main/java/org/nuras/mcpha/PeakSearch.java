@@ -0,0 +1,361 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the peaks of a channel's histogram each time a snapshot is read,
+ * and measures their centroid, FWHM and net area.
+ *
+ * Peaks are found with a top-hat filter, a smoothed second derivative
+ * whose central box is as wide as the FWHM expected at each bin and whose
+ * side boxes take away the background. Where the filter is significantly
+ * above zero there is a peak. The boxes are summed from the channel's
+ * prefix sums, so a search costs a few lookups per bin whatever the
+ * width of the peaks.
+ *
+ * Each search starts from the last one: a peak whose window holds the
+ * same counts as before keeps its fit, and a peak found close to where
+ * one was before keeps its id, so clients can follow a peak as it grows
+ * or drifts.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class PeakSearch
+{
+  static class Peak
+  {
+    int id;
+    // window the peak was measured over
+    int start;
+    int end;
+    // counts in the window when it was measured
+    long gross;
+    double centroid;
+    double fwhm;
+    double area;
+    double height;
+  }
+
+  // FWHM, in bins, of the narrowest peak looked for
+  private double fwhm = 6.0;
+
+  // FWHM of a peak as a fraction of its position
+  private double resolution = 0.07;
+
+  // standard deviations the filter has to be above zero to be a peak
+  private double sensitivity = 3.0;
+
+  // half width of the filter's central box at each bin
+  private final int[] halfWidth = new int[HistogramChannel.BINS];
+
+  private List<Peak> peaks = new ArrayList<>();
+
+  // the list the next search fills, swapped with peaks when it is done
+  private List<Peak> found = new ArrayList<>();
+
+  // the top of each run of significant bins, and its filter value, found
+  // by the search in progress
+  private final int[] tops = new int[HistogramChannel.BINS];
+
+  private final double[] topValues = new double[HistogramChannel.BINS];
+
+  private int topCount = 0;
+
+  private int nextId = 1;
+
+  /**
+   *
+   */
+  PeakSearch()
+  {
+    setParameters(fwhm, resolution, sensitivity);
+  }
+
+  /**
+   * Set the width of the peaks looked for, which is the larger of fwhm and
+   * resolution times the peak position, and how significant they have to
+   * be.
+   *
+   * @param fwhm in bins
+   * @param resolution
+   * @param sensitivity in standard deviations
+   */
+  final void setParameters(double fwhm, double resolution, double sensitivity)
+  {
+    this.fwhm = fwhm;
+    this.resolution = resolution;
+    this.sensitivity = sensitivity;
+    for (int i=0; i<halfWidth.length; i++)
+    {
+      halfWidth[i] = (int)Math.max(1L, Math.round(expectedFwhm(i) / 2));
+    }
+    // nothing measured with the old parameters is kept
+    peaks.clear();
+  }
+
+  /**
+   *
+   * @param bin
+   * @return the FWHM of a peak at the bin
+   */
+  double expectedFwhm(int bin)
+  {
+    return Math.max(fwhm, resolution * bin);
+  }
+
+  /**
+   *
+   * @return the peaks found by the last search, in bin order
+   */
+  List<Peak> getPeaks()
+  {
+    return peaks;
+  }
+
+  /**
+   * Search the channel's last snapshot for peaks. The channel's bins must
+   * have been summed. A search allocates only to measure a peak that has
+   * changed.
+   *
+   * @param ch
+   * @return true if the peaks found differ from those of the last search
+   */
+  boolean update(HistogramChannel ch)
+  {
+    topCount = 0;
+    int best = -1;
+    double bestValue = 0.0;
+    double k2 = sensitivity * sensitivity;
+    for (int i=0; i<HistogramChannel.BINS; i++)
+    {
+      int m = halfWidth[i];
+      boolean significant = false;
+      double value = 0.0;
+      if (i - 2 * m >= 0 && i + 2 * m < HistogramChannel.BINS)
+      {
+        // central box of 2m+1 bins less two side boxes of m bins, weighted
+        // so that a flat background gives zero
+        long centre = ch.sum(i - m, i + m);
+        long sides = ch.sum(i - 2 * m, i - m - 1) + ch.sum(i + m + 1, i + 2 * m);
+        double w = (2.0 * m + 1) / (2.0 * m);
+        value = centre - w * sides;
+        significant = value > 0 && value * value > k2 * (centre + w * w * sides);
+      }
+
+      if (significant)
+      {
+        if (best < 0 || value > bestValue)
+        {
+          best = i;
+          bestValue = value;
+        }
+      }
+      else if (best >= 0)
+      {
+        candidate(best, bestValue);
+        best = -1;
+      }
+    }
+    if (best >= 0)
+    {
+      candidate(best, bestValue);
+    }
+
+    found.clear();
+    boolean changed = false;
+    for (int i=0; i<topCount; i++)
+    {
+      changed |= add(ch, tops[i], found);
+    }
+
+    changed |= found.size() != peaks.size();
+    List<Peak> last = peaks;
+    peaks = found;
+    found = last;
+
+    return changed;
+  }
+
+  /**
+   * Add a candidate to those found, unless it is within a peak width of
+   * the one before, when noise has split a peak and only the more
+   * significant of the two is kept.
+   */
+  private void candidate(int bin, double value)
+  {
+    int n = topCount;
+    if (n > 0 && bin - tops[n - 1] < expectedFwhm(bin))
+    {
+      if (value > topValues[n - 1])
+      {
+        tops[n - 1] = bin;
+        topValues[n - 1] = value;
+      }
+      return;
+    }
+    tops[n] = bin;
+    topValues[n] = value;
+    topCount++;
+  }
+
+  /**
+   * Add the peak at the bin to those found, reusing the last fit of it if
+   * its counts have not changed.
+   *
+   * @param ch
+   * @param bin
+   * @param found
+   * @return true if the peak had to be measured
+   */
+  private boolean add(HistogramChannel ch, int bin, List<Peak> found)
+  {
+    int w = (int)Math.round(expectedFwhm(bin));
+    int start = Math.max(0, bin - w);
+    int end = Math.min(HistogramChannel.BINS - 1, bin + w);
+    long gross = ch.sum(start, end);
+
+    Peak last = null;
+    for (int i=0; i<peaks.size(); i++)
+    {
+      Peak p = peaks.get(i);
+      if (p.start == start && p.end == end && p.gross == gross)
+      {
+        found.add(p);
+        return false;
+      }
+      if (Math.abs(p.centroid - bin) < w / 2.0 && !hasId(found, p.id) &&
+          (last == null || Math.abs(p.centroid - bin) < Math.abs(last.centroid - bin)))
+      {
+        last = p;
+      }
+    }
+
+    Peak p = measure(ch, start, end, w / 8);
+    p.gross = gross;
+    p.id = last != null ? last.id : nextId++;
+    found.add(p);
+
+    return true;
+  }
+
+  /**
+   *
+   * @return true if one of the peaks has the id
+   */
+  private static boolean hasId(List<Peak> peaks, int id)
+  {
+    for (int i=0; i<peaks.size(); i++)
+    {
+      if (peaks.get(i).id == id)
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Measure the peak in a window of the histogram, above a linear
+   * background drawn between the edges of the window. The height and
+   * width are taken from the counts smoothed over a few bins, so that
+   * noise in single bins does not throw them off.
+   *
+   * @param ch
+   * @param start
+   * @param end
+   * @param smooth number of bins either side to smooth over
+   * @return the peak
+   */
+  private static Peak measure(HistogramChannel ch, int start, int end, int smooth)
+  {
+    double[] edges = ch.edgeMeans(start, end);
+    double slope = (edges[1] - edges[0]) / Math.max(1, end - start);
+
+    double area = 0.0, positive = 0.0, moment = 0.0, height = 0.0;
+    int top = start;
+    for (int i=start; i<=end; i++)
+    {
+      double background = edges[0] + slope * (i - start);
+      double net = (ch.data.get(i) & 0xFFFFFFFFL) - background;
+      area += net;
+      if (net > 0)
+      {
+        positive += net;
+        moment += net * i;
+      }
+      double smoothed = mean(ch, i, smooth, start, end) - background;
+      if (smoothed > height)
+      {
+        height = smoothed;
+        top = i;
+      }
+    }
+
+    // where the peak falls to half its height either side of the top
+    double half = height / 2;
+    double left = start, right = end;
+    double above = height;
+    for (int i=top-1; i>=start; i--)
+    {
+      double below = mean(ch, i, smooth, start, end) - (edges[0] + slope * (i - start));
+      if (below < half)
+      {
+        left = i + 1 - (above - half) / (above - below);
+        break;
+      }
+      above = below;
+    }
+    above = height;
+    for (int i=top+1; i<=end; i++)
+    {
+      double below = mean(ch, i, smooth, start, end) - (edges[0] + slope * (i - start));
+      if (below < half)
+      {
+        right = i - 1 + (above - half) / (above - below);
+        break;
+      }
+      above = below;
+    }
+
+    Peak p = new Peak();
+    p.start = start;
+    p.end = end;
+    p.centroid = positive > 0 ? moment / positive : top;
+    p.fwhm = right - left;
+    p.area = area;
+    p.height = height;
+
+    return p;
+  }
+
+  /**
+   *
+   * @return the mean counts of the bins within smooth of the bin, and
+   * within the window
+   */
+  private static double mean(HistogramChannel ch, int bin, int smooth,
+    int start, int end)
+  {
+    int from = Math.max(start, bin - smooth);
+    int to = Math.min(end, bin + smooth);
+
+    return (double)ch.sum(from, to) / (to - from + 1);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * An encoded websocket message, either text or binary, that can be sent
+ * to any number of sessions. A frame is encoded once and never modified,
+ * so the same instance is shared by every session it is sent to. Frames
+ * are queued for each session on its {@link SendQueue}.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class PushFrame
+{
+  private final String text;
+
+  private final ByteBuffer data;
+
+  /**
+   *
+   * @param text
+   * @param data
+   */
+  private PushFrame(String text, ByteBuffer data)
+  {
+    this.text = text;
+    this.data = data;
+  }
+
+  /**
+   *
+   * @param json
+   * @return a text frame
+   */
+  public static PushFrame text(String json)
+  {
+    return new PushFrame(json, null);
+  }
+
+  /**
+   *
+   * @param data the encoded frame, positioned at 0
+   * @return a binary frame
+   */
+  public static PushFrame binary(ByteBuffer data)
+  {
+    return new PushFrame(null, data.asReadOnlyBuffer());
+  }
+
+  /**
+   *
+   * @return true if this is a binary frame
+   */
+  public boolean isBinary()
+  {
+    return data != null;
+  }
+
+  /**
+   *
+   * @return the size of the frame in bytes, or in characters for a text
+   * frame
+   */
+  public int size()
+  {
+    return data != null ? data.remaining() : text.length();
+  }
+
+  /**
+   * Send the frame without waiting for it to be written.
+   *
+   * @param user
+   * @param callback told when the frame has been written or has failed
+   */
+  public void sendAsync(Session user, WriteCallback callback)
+  {
+    Metrics.sendStarted(user, data != null, size());
+    WriteCallback counted = new WriteCallback()
+    {
+      @Override
+      public void writeFailed(Throwable x)
+      {
+        Metrics.sendFinished(user, true);
+        callback.writeFailed(x);
+      }
+
+      @Override
+      public void writeSuccess()
+      {
+        Metrics.sendFinished(user, false);
+        callback.writeSuccess();
+      }
+    };
+
+    try
+    {
+      // throws once the session is no longer open
+      RemoteEndpoint dest = user.getRemote();
+      if (data != null)
+      {
+        Client.logDebugMessage("PUSH_BINARY_MESSAGE:"+data.remaining()+" bytes");
+        dest.sendBytes(data.duplicate(), counted);
+      }
+      else
+      {
+        Client.logDebugMessage("PUSH_MESSAGE:"+text);
+        dest.sendString(text, counted);
+      }
+    }
+    catch (RuntimeException ex)
+    {
+      // refused before it was queued, so the callback is never called
+      Metrics.sendFinished(user, true);
+      throw ex;
+    }
+  }
+}
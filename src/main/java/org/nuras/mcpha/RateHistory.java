@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import org.json.JSONArray;
+
+/**
+ * The last few thousand count rates of a channel or an ROI, each taken
+ * between two snapshots, in a ring buffer so the history never grows. A
+ * point is the wall clock time the rate was taken, the rate and, if it is
+ * known, the fraction of the time the channel was dead.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class RateHistory
+{
+  public static final int CAPACITY = 3600;
+
+  private final long[] times = new long[CAPACITY];
+
+  private final double[] rates = new double[CAPACITY];
+
+  private final double[] deadFractions = new double[CAPACITY];
+
+  // index of the oldest point
+  private int first = 0;
+
+  private int size = 0;
+
+  /**
+   * Add a point, dropping the oldest if the history is full.
+   *
+   * @param time milliseconds since the epoch
+   * @param rate counts per second
+   * @param deadFraction fraction of the time the channel was dead, or NaN
+   * if not known
+   */
+  void add(long time, double rate, double deadFraction)
+  {
+    int i = (first + size) % CAPACITY;
+    if (size == CAPACITY)
+    {
+      first = (first + 1) % CAPACITY;
+    }
+    else
+    {
+      size++;
+    }
+    times[i] = time;
+    rates[i] = rate;
+    deadFractions[i] = deadFraction;
+  }
+
+  /**
+   *
+   * @return the time of the newest point, or 0 if there is none
+   */
+  long lastTime()
+  {
+    return size > 0 ? times[(first + size - 1) % CAPACITY] : 0L;
+  }
+
+  /**
+   *
+   * @return the rate of the newest point
+   */
+  double lastRate()
+  {
+    return rates[(first + size - 1) % CAPACITY];
+  }
+
+  /**
+   *
+   * @return the dead fraction of the newest point, or NaN if not known
+   */
+  double lastDeadFraction()
+  {
+    return deadFractions[(first + size - 1) % CAPACITY];
+  }
+
+  /**
+   *
+   * @return the rates, oldest first, as [time, rate] points
+   */
+  JSONArray ratesJSON()
+  {
+    JSONArray data = new JSONArray();
+    for (int n=0; n<size; n++)
+    {
+      int i = (first + n) % CAPACITY;
+      data.put(new JSONArray().put(times[i]).put(rates[i]));
+    }
+
+    return data;
+  }
+
+  /**
+   *
+   * @return the dead fractions that are known, oldest first, as
+   * [time, fraction] points
+   */
+  JSONArray deadFractionsJSON()
+  {
+    JSONArray data = new JSONArray();
+    for (int n=0; n<size; n++)
+    {
+      int i = (first + n) % CAPACITY;
+      if (!Double.isNaN(deadFractions[i]))
+      {
+        data.put(new JSONArray().put(times[i]).put(deadFractions[i]));
+      }
+    }
+
+    return data;
+  }
+}
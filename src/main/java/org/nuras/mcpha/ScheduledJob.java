@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A job run as a series of steps on the shared scheduler, each step
+ * saying how long to wait before the next one. No thread is held between
+ * steps, so any number of jobs share the scheduler's few threads, and a
+ * job can be woken early or cancelled at any time. A cancelled job stops
+ * as soon as the step in progress, if any, returns.
+ *
+ * {@link #finished()} is called exactly once, when the last step has run
+ * or the job has been cancelled.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public abstract class ScheduledJob implements Runnable
+{
+  // guarded by this
+  private ScheduledFuture<?> future = null;
+
+  private boolean running = false;
+
+  private boolean cancelled = false;
+
+  private boolean wakePending = false;
+
+  // set once finished() is due to be called
+  private boolean over = false;
+
+  /**
+   * Perform the next step of the job.
+   *
+   * @return milliseconds to wait before the next step, or -1 when the job
+   * is over
+   */
+  protected abstract long step();
+
+  /**
+   * Called once the job is over, whether it ended or was cancelled.
+   */
+  protected void finished()
+  {
+  }
+
+  /**
+   * Schedule the first step to run straight away.
+   */
+  synchronized public void start()
+  {
+    future = Client.getScheduler().schedule(this, 0, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void run()
+  {
+    synchronized (this)
+    {
+      if (over)
+      {
+        return;
+      }
+      future = null;
+      if (cancelled)
+      {
+        over = true;
+      }
+      else
+      {
+        running = true;
+        wakePending = false;
+      }
+    }
+    if (over)
+    {
+      finished();
+      return;
+    }
+
+    long delay;
+    try
+    {
+      delay = step();
+    }
+    catch (RuntimeException ex)
+    {
+      Logger.getLogger(ScheduledJob.class.getName()).log(Level.SEVERE, null, ex);
+      delay = -1;
+    }
+
+    synchronized (this)
+    {
+      running = false;
+      over = cancelled || delay < 0;
+      if (!over)
+      {
+        future = Client.getScheduler().schedule(this, wakePending ? 0 : delay,
+          TimeUnit.MILLISECONDS);
+      }
+    }
+    if (over)
+    {
+      finished();
+    }
+  }
+
+  /**
+   * Run the next step now rather than when it is due, or straight after
+   * the step in progress.
+   */
+  synchronized public void wakeUp()
+  {
+    if (cancelled || over)
+    {
+      return;
+    }
+    if (running)
+    {
+      wakePending = true;
+      return;
+    }
+    if (future != null && future.cancel(false))
+    {
+      future = Client.getScheduler().schedule(this, 0, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stop the job. If a step is in progress the job stops when it returns.
+   */
+  public void cancel()
+  {
+    synchronized (this)
+    {
+      if (cancelled || over)
+      {
+        return;
+      }
+      cancelled = true;
+      // a step in progress, or one that has been taken off the queue but
+      // not started yet, sees the job is cancelled and finishes it
+      if (running || (future != null && !future.cancel(false)))
+      {
+        return;
+      }
+      future = null;
+      over = true;
+    }
+    finished();
+  }
+
+  /**
+   *
+   * @return true once the job has been cancelled
+   */
+  synchronized public boolean isCancelled()
+  {
+    return cancelled;
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * The messages waiting to be sent to one session. Queueing a message
+ * never blocks: messages are written asynchronously, one at a time and in
+ * the order they were queued, so a slow session only ever holds up its
+ * own messages.
+ *
+ * Frames that carry the latest state of something, such as a histogram
+ * or an oscilloscope trace, are queued in a slot, and a new frame replaces
+ * the unsent frames in its slot whose channels it covers. Everything else
+ * is queued outside any slot and is never dropped. A session that falls
+ * so far behind that more than {@link #MAX_QUEUED_BYTES} are waiting is
+ * closed.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class SendQueue implements WriteCallback
+{
+  // bytes, or characters of text messages, that may be waiting to be sent
+  public static final long MAX_QUEUED_BYTES = 16L << 20;
+
+  // waiting bytes above which the session is sent no more than it must be
+  public static final long BACKLOG_BYTES = 1L << 20;
+
+  private static class Entry
+  {
+    final PushFrame frame;
+    final String slot;
+    final int mask;
+
+    Entry(PushFrame frame, String slot, int mask)
+    {
+      this.frame = frame;
+      this.slot = slot;
+      this.mask = mask;
+    }
+  }
+
+  private final Session user;
+
+  // guarded by this
+  private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+  private long queuedBytes = 0;
+
+  // a message is being written
+  private boolean sending = false;
+
+  // a thread is taking messages off the queue
+  private boolean pumping = false;
+
+  private boolean closed = false;
+
+  /**
+   *
+   * @param user
+   */
+  SendQueue(Session user)
+  {
+    this.user = user;
+  }
+
+  /**
+   * Queue a message that must not be dropped.
+   *
+   * @param frame
+   */
+  public void offer(PushFrame frame)
+  {
+    offer(frame, null, 0);
+  }
+
+  /**
+   * Queue a frame, replacing the unsent frames in the same slot whose
+   * channels are all among the frame's channels.
+   *
+   * @param frame
+   * @param slot what the frame holds the latest state of, or null if the
+   * frame must not be dropped
+   * @param mask the channels the frame holds
+   */
+  public void offer(PushFrame frame, String slot, int mask)
+  {
+    boolean overflowed;
+    synchronized (this)
+    {
+      if (closed)
+      {
+        return;
+      }
+      if (slot != null)
+      {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext())
+        {
+          Entry e = it.next();
+          if (slot.equals(e.slot) && (e.mask & ~mask) == 0)
+          {
+            it.remove();
+            queuedBytes -= e.frame.size();
+            Metrics.frameReplaced();
+          }
+        }
+      }
+      queue.add(new Entry(frame, slot, mask));
+      queuedBytes += frame.size();
+
+      overflowed = queuedBytes > MAX_QUEUED_BYTES;
+      if (overflowed)
+      {
+        close();
+      }
+    }
+
+    if (overflowed)
+    {
+      Logger.getLogger(SendQueue.class.getName()).log(Level.WARNING,
+        "Closing {0}, which is too far behind", Client.userUsernameMap.get(user));
+      Metrics.slowSessionClosed();
+      user.close(StatusCode.TRY_AGAIN_LATER, "Too far behind");
+      return;
+    }
+
+    pump();
+  }
+
+  /**
+   *
+   * @param slot
+   * @param mask
+   * @return true if a frame with the channels would replace an unsent
+   * frame in the slot
+   */
+  synchronized public boolean isPending(String slot, int mask)
+  {
+    for (Entry e : queue)
+    {
+      if (slot.equals(e.slot) && (e.mask & ~mask) == 0)
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   *
+   * @return true if more than {@link #BACKLOG_BYTES} are waiting
+   */
+  synchronized public boolean isBacklogged()
+  {
+    return queuedBytes > BACKLOG_BYTES;
+  }
+
+  /**
+   *
+   * @return the bytes, or characters of text messages, waiting to be sent
+   */
+  synchronized public long getQueuedBytes()
+  {
+    return queuedBytes;
+  }
+
+  /**
+   * Drop everything waiting and queue nothing more.
+   */
+  synchronized public void close()
+  {
+    closed = true;
+    queue.clear();
+    queuedBytes = 0;
+  }
+
+  /**
+   * Start writing queued messages until one has to wait to be written,
+   * unless another thread is already doing so.
+   */
+  private void pump()
+  {
+    synchronized (this)
+    {
+      if (pumping)
+      {
+        return;
+      }
+      pumping = true;
+    }
+
+    while (true)
+    {
+      Entry e;
+      synchronized (this)
+      {
+        if (sending || queue.isEmpty())
+        {
+          pumping = false;
+          return;
+        }
+        e = queue.poll();
+        queuedBytes -= e.frame.size();
+        sending = true;
+      }
+
+      try
+      {
+        // the callback may be called before this returns, in which case
+        // the loop goes on to the next message
+        e.frame.sendAsync(user, this);
+      }
+      catch (RuntimeException ex)
+      {
+        Client.logDebugMessage("Not sent to "+Client.userUsernameMap.get(user)+": "+ex.getMessage());
+        synchronized (this)
+        {
+          sending = false;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void writeFailed(Throwable x)
+  {
+    Client.logDebugMessage("Not sent to "+Client.userUsernameMap.get(user)+": "+x.getMessage());
+    writeSuccess();
+  }
+
+  @Override
+  public void writeSuccess()
+  {
+    synchronized (this)
+    {
+      sending = false;
+      if (pumping)
+      {
+        return;
+      }
+    }
+    pump();
+  }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import spark.Request;
+import spark.Response;
+import spark.utils.GzipUtils;
+
+import static spark.Spark.halt;
+
+/**
+ * Writes histograms over HTTP in the formats analysis software reads, a
+ * snapshot at a time straight from the counts to the response, which is
+ * gzip compressed when the client accepts it. Nothing is held in memory
+ * beyond one snapshot, so a whole logged run streams as easily as a
+ * single histogram.
+ *
+ * <ul>
+ *   <li>csv: a header row, then one row per snapshot of its time (ms
+ *   since the epoch), timer value and bin counts</li>
+ *   <li>txt: for each snapshot, comment lines starting with # and then one
+ *   bin count per line, snapshots separated by a blank line</li>
+ *   <li>spe: the ASCII spectrum file written by Maestro, which holds one
+ *   spectrum</li>
+ *   <li>n42: an ANSI N42.42-2011 document with a RadMeasurement per
+ *   snapshot</li>
+ * </ul>
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class SpectrumExport
+{
+  private static final String N42_NAMESPACE = "http://physics.nist.gov/N42/2011/N42";
+
+  private final String format;
+
+  private final Writer out;
+
+  private final String device;
+
+  private final int chan;
+
+  private final char[] digits = new char[20];
+
+  private int count = 0;
+
+  /**
+   *
+   * @param format csv, txt, spe or n42
+   * @param out
+   * @param device
+   * @param chan
+   */
+  SpectrumExport(String format, OutputStream out, String device, int chan)
+  {
+    this.format = format;
+    this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+    this.device = device;
+    this.chan = chan;
+  }
+
+  /**
+   *
+   * @param format
+   * @return true if the format is one that can be exported
+   */
+  static boolean isFormat(String format)
+  {
+    return "csv".equals(format) || "txt".equals(format) ||
+      "spe".equals(format) || "n42".equals(format);
+  }
+
+  /**
+   *
+   * @param format
+   * @return the content type of the format
+   */
+  static String contentType(String format)
+  {
+    switch (format)
+    {
+      case "csv":
+        return "text/csv; charset=utf-8";
+      case "n42":
+        return "application/xml; charset=utf-8";
+      default:
+        return "text/plain; charset=utf-8";
+    }
+  }
+
+  /**
+   * Write what comes before the first snapshot.
+   *
+   * @throws IOException
+   */
+  void begin()
+    throws IOException
+  {
+    if (format.equals("csv"))
+    {
+      out.write("time,timer");
+      for (int i=0; i<HistogramChannel.BINS; i++)
+      {
+        out.write(",c");
+        writeLong(i);
+      }
+      out.write('\n');
+    }
+    else if (format.equals("n42"))
+    {
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      out.write("<RadInstrumentData xmlns=\""+N42_NAMESPACE+"\">\n");
+      out.write("  <RadInstrumentInformation id=\"RadInstrumentInformation-1\">\n");
+      out.write("    <RadInstrumentManufacturerName>Red Pitaya</RadInstrumentManufacturerName>\n");
+      out.write("    <RadInstrumentModelName>MCPHA</RadInstrumentModelName>\n");
+      out.write("    <RadInstrumentClassCode>Other</RadInstrumentClassCode>\n");
+      out.write("  </RadInstrumentInformation>\n");
+      out.write("  <RadDetectorInformation id=\"RadDetectorInformation-1\">\n");
+      out.write("    <RadDetectorName>"+xml(device)+" channel "+chan+"</RadDetectorName>\n");
+      out.write("    <RadDetectorCategoryCode>Gamma</RadDetectorCategoryCode>\n");
+      out.write("    <RadDetectorKindCode>Other</RadDetectorKindCode>\n");
+      out.write("  </RadDetectorInformation>\n");
+    }
+  }
+
+  /**
+   * Write one snapshot.
+   *
+   * @param time time the snapshot was read, ms since the epoch
+   * @param timer real time of the run, seconds
+   * @param liveTime live time of the run, seconds
+   * @param data bin counts
+   * @throws IOException
+   */
+  void spectrum(long time, double timer, double liveTime, IntBuffer data)
+    throws IOException
+  {
+    count++;
+    int bins = Math.min(HistogramChannel.BINS, data.limit());
+    if (format.equals("csv"))
+    {
+      writeLong(time);
+      out.write(',');
+      out.write(Double.toString(timer));
+      for (int i=0; i<bins; i++)
+      {
+        out.write(',');
+        writeLong(data.get(i) & 0xFFFFFFFFL);
+      }
+      out.write('\n');
+    }
+    else if (format.equals("txt"))
+    {
+      if (count > 1)
+      {
+        out.write('\n');
+      }
+      out.write("# device "+device+" channel "+chan+"\n");
+      out.write("# time "+iso(time)+"\n");
+      out.write("# real time "+timer+" s\n");
+      out.write("# live time "+liveTime+" s\n");
+      for (int i=0; i<bins; i++)
+      {
+        writeLong(data.get(i) & 0xFFFFFFFFL);
+        out.write('\n');
+      }
+    }
+    else if (format.equals("spe"))
+    {
+      SimpleDateFormat date = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss", Locale.US);
+      out.write("$SPEC_ID:\n"+device+" channel "+chan+"\n");
+      out.write("$DATE_MEA:\n"+date.format(new Date(start(time, timer)))+"\n");
+      out.write("$MEAS_TIM:\n"+Math.round(liveTime)+" "+Math.round(timer)+"\n");
+      out.write("$DATA:\n0 "+(bins - 1)+"\n");
+      for (int i=0; i<bins; i++)
+      {
+        writeLong(data.get(i) & 0xFFFFFFFFL);
+        out.write('\n');
+      }
+    }
+    else
+    {
+      out.write("  <RadMeasurement id=\"RadMeasurement-"+count+"\">\n");
+      out.write("    <MeasurementClassCode>Foreground</MeasurementClassCode>\n");
+      out.write("    <StartDateTime>"+iso(start(time, timer))+"</StartDateTime>\n");
+      out.write("    <RealTimeDuration>"+duration(timer)+"</RealTimeDuration>\n");
+      out.write("    <Spectrum id=\"Spectrum-"+count+
+        "\" radDetectorInformationReference=\"RadDetectorInformation-1\">\n");
+      out.write("      <LiveTimeDuration>"+duration(liveTime)+"</LiveTimeDuration>\n");
+      out.write("      <ChannelData>");
+      for (int i=0; i<bins; i++)
+      {
+        if (i > 0)
+        {
+          out.write(' ');
+        }
+        writeLong(data.get(i) & 0xFFFFFFFFL);
+      }
+      out.write("</ChannelData>\n");
+      out.write("    </Spectrum>\n");
+      out.write("  </RadMeasurement>\n");
+    }
+  }
+
+  /**
+   * Write what comes after the last snapshot, and flush the output.
+   *
+   * @throws IOException
+   */
+  void end()
+    throws IOException
+  {
+    if (format.equals("n42"))
+    {
+      out.write("</RadInstrumentData>\n");
+    }
+    out.flush();
+  }
+
+  /**
+   * Write a non-negative number without going through a String.
+   *
+   * @param v
+   * @throws IOException
+   */
+  private void writeLong(long v)
+    throws IOException
+  {
+    int i = digits.length;
+    do
+    {
+      digits[--i] = (char)('0' + v % 10);
+      v /= 10;
+    }
+    while (v > 0);
+    out.write(digits, i, digits.length - i);
+  }
+
+  /**
+   *
+   * @return the time the run started, from the time a snapshot was read
+   * and its timer value
+   */
+  private static long start(long time, double timer)
+  {
+    return time - Math.round(timer * 1000);
+  }
+
+  /**
+   *
+   * @param time ms since the epoch
+   * @return the time in ISO 8601 UTC
+   */
+  private static String iso(long time)
+  {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    return format.format(new Date(time));
+  }
+
+  /**
+   *
+   * @param seconds
+   * @return the seconds as an xsd:duration
+   */
+  private static String duration(double seconds)
+  {
+    return String.format(Locale.US, "PT%.6fS", seconds);
+  }
+
+  /**
+   *
+   * @param s
+   * @return s escaped for XML character data
+   */
+  private static String xml(String s)
+  {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  /**
+   * Start the response: set its content type and file name, and wrap its
+   * output for gzip if the client accepts it.
+   *
+   * @return the output to write the export to
+   */
+  private static OutputStream open(Request request, Response response,
+    String format, String name)
+    throws IOException
+  {
+    response.type(contentType(format));
+    response.header("Content-Disposition", "attachment; filename=\""+name+"."+format+"\"");
+
+    return GzipUtils.checkAndWrap(request.raw(), response.raw(), false);
+  }
+
+  /**
+   *
+   * @return the format asked for, csv if none was
+   */
+  private static String format(Request request)
+  {
+    String format = request.queryParams("format");
+    if (format == null)
+    {
+      return "csv";
+    }
+    if (!isFormat(format))
+    {
+      halt(400, "Unknown format "+format);
+    }
+
+    return format;
+  }
+
+  /**
+   *
+   * @return the query parameter as a number, or the default if it is
+   * missing
+   */
+  private static long longParam(Request request, String name, long def)
+  {
+    String value = request.queryParams(name);
+    if (value == null)
+    {
+      return def;
+    }
+    try
+    {
+      return Long.parseLong(value);
+    }
+    catch (NumberFormatException ex)
+    {
+      halt(400, "Invalid "+name+" "+value);
+      return def;
+    }
+  }
+
+  /**
+   * GET /export/device/:device/:chan, the last histogram read from a
+   * channel of a connected device.
+   *
+   * @param request
+   * @param response
+   * @return an empty body, the export having been written
+   * @throws IOException
+   */
+  public static Object exportDevice(Request request, Response response)
+    throws IOException
+  {
+    String format = format(request);
+    String id = request.params(":device");
+    DeviceConnection device = Client.devices.get(id);
+    if (device == null)
+    {
+      halt(404, "Device "+id+" not connected");
+    }
+    String chanParam = request.params(":chan");
+    if (!chanParam.equals("0") && !chanParam.equals("1"))
+    {
+      halt(404, "No channel "+chanParam);
+    }
+    int chan = Integer.parseInt(chanParam);
+
+    IntBuffer data = IntBuffer.allocate(HistogramChannel.BINS);
+    double[] times = device.getHistogramSnapshot(chan, data);
+    if (times == null)
+    {
+      halt(404, "No histogram has been read from device "+id+" channel "+chan);
+    }
+
+    try (OutputStream out = open(request, response, format, id+"-"+chan))
+    {
+      SpectrumExport export = new SpectrumExport(format, out, id, chan);
+      export.begin();
+      export.spectrum(System.currentTimeMillis(), times[0], times[1], data);
+      export.end();
+    }
+
+    return "";
+  }
+
+  /**
+   * GET /export/history/:run, snapshots of a logged run. With no query
+   * the last snapshot is exported; record picks one snapshot, and from,
+   * to and step export every step'th snapshot from from up to, but not
+   * including, to.
+   *
+   * @param request
+   * @param response
+   * @return an empty body, the export having been written
+   * @throws IOException
+   */
+  public static Object exportHistory(Request request, Response response)
+    throws IOException
+  {
+    String format = format(request);
+    String run = request.params(":run");
+    SpectrumLog log = null;
+    try
+    {
+      log = Client.openRun(run);
+    }
+    catch (FileNotFoundException ex)
+    {
+      halt(404, "No run "+run);
+    }
+    catch (IOException ex)
+    {
+      halt(404, ex.getMessage());
+    }
+
+    try
+    {
+      long records = log.getRecordCount();
+      long from, to, step;
+      if (request.queryParams("record") != null)
+      {
+        from = longParam(request, "record", 0);
+        to = from + 1;
+        step = 1;
+      }
+      else if (request.queryParams("from") != null || request.queryParams("to") != null)
+      {
+        from = longParam(request, "from", 0);
+        to = Math.min(records, longParam(request, "to", records));
+        step = Math.max(1, longParam(request, "step", 1));
+      }
+      else
+      {
+        from = records - 1;
+        to = records;
+        step = 1;
+      }
+      if (from < 0 || from >= to || to > records)
+      {
+        halt(404, "No records in range of run "+run);
+      }
+      if (format.equals("spe") && to - from > step)
+      {
+        halt(400, "An spe file holds one spectrum, export many as csv, txt or n42");
+      }
+
+      IntBuffer data = IntBuffer.allocate(log.getBins());
+      try (OutputStream out = open(request, response, format, run))
+      {
+        SpectrumExport export = new SpectrumExport(format, out, log.getDevice(),
+          log.getChannel());
+        export.begin();
+        for (long i=from; i<to; i+=step)
+        {
+          double timer = log.read(i, data);
+          export.spectrum(log.getTime(i), timer, timer, data);
+        }
+        export.end();
+      }
+    }
+    finally
+    {
+      log.close();
+    }
+
+    return "";
+  }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of the histogram snapshots of one channel of a device
+ * during one acquisition run. The file is written and read through memory
+ * mappings, a chunk of records at a time, so appending a snapshot is a
+ * copy into memory and the write back to disk is left to the OS. All
+ * values are little-endian.
+ *
+ * <pre>
+ *   file header (HEADER_SIZE bytes)
+ *        0     8  magic "MCPHALOG"
+ *        8     4  version
+ *       12     4  number of bins
+ *       16     4  channel
+ *       20     4  record size in bytes
+ *       24     8  start of the run, ms since the epoch
+ *       32     8  number of records
+ *       40    24  device id, UTF-8, zero padded
+ *
+ *   record (RECORD_HEADER_SIZE + 4 * bins bytes)
+ *        0     8  time the snapshot was read, ms since the epoch
+ *        8     8  timer value in seconds (IEEE 754 double)
+ *       16     4  sequence number
+ *       20     4  reserved
+ *       24        bin counts as unsigned 32-bit integers
+ * </pre>
+ *
+ * Records are fixed length, so record i starts at
+ * HEADER_SIZE + i * record size.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class SpectrumLog
+{
+  public static final String SUFFIX = ".mcphalog";
+
+  public static final int HEADER_SIZE = 64;
+
+  public static final int RECORD_HEADER_SIZE = 24;
+
+  public static final int VERSION = 1;
+
+  private static final byte[] MAGIC = "MCPHALOG".getBytes(StandardCharsets.US_ASCII);
+
+  private static final int DEVICE_ID_SIZE = 24;
+
+  // number of records mapped at a time
+  private static final int CHUNK_RECORDS = 64;
+
+  private final File file;
+
+  private final RandomAccessFile raf;
+
+  private final FileChannel channel;
+
+  private final boolean writable;
+
+  private final MappedByteBuffer header;
+
+  private final String device;
+
+  private final int chan;
+
+  private final int bins;
+
+  private final int recordSize;
+
+  private final long start;
+
+  private long records;
+
+  // chunk of records currently mapped
+  private MappedByteBuffer chunk = null;
+
+  private long chunkIndex = -1;
+
+  /**
+   *
+   * @param file
+   * @param writable
+   * @throws IOException
+   */
+  private SpectrumLog(File file, boolean writable)
+    throws IOException
+  {
+    this.file = file;
+    this.writable = writable;
+    raf = new RandomAccessFile(file, writable ? "rw" : "r");
+    channel = raf.getChannel();
+    try
+    {
+      header = channel.map(writable ? FileChannel.MapMode.READ_WRITE :
+        FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      header.order(ByteOrder.LITTLE_ENDIAN);
+
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (!writable && !Arrays.equals(magic, MAGIC))
+      {
+        throw new IOException(file+" is not a spectrum log");
+      }
+      bins = header.getInt(12);
+      chan = header.getInt(16);
+      recordSize = header.getInt(20);
+      start = header.getLong(24);
+      records = header.getLong(32);
+
+      byte[] id = new byte[DEVICE_ID_SIZE];
+      header.position(40);
+      header.get(id);
+      int n = 0;
+      while (n < id.length && id[n] != 0)
+      {
+        n++;
+      }
+      device = new String(id, 0, n, StandardCharsets.UTF_8);
+    }
+    catch (IOException | RuntimeException ex)
+    {
+      raf.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Start a new log for a run.
+   *
+   * @param dir directory to create the log in
+   * @param device
+   * @param chan
+   * @param bins
+   * @return the log, ready to be appended to
+   * @throws IOException
+   */
+  public static SpectrumLog create(File dir, String device, int chan, int bins)
+    throws IOException
+  {
+    if (!dir.isDirectory() && !dir.mkdirs())
+    {
+      throw new IOException("Cannot create history directory "+dir);
+    }
+
+    long now = System.currentTimeMillis();
+    String name = device.replaceAll("[^A-Za-z0-9_.-]", "_")+"-"+chan+"-"+
+      new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(now));
+    File file = new File(dir, name+SUFFIX);
+    for (int i=1; file.exists(); i++)
+    {
+      file = new File(dir, name+"-"+i+SUFFIX);
+    }
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+    {
+      ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      h.put(MAGIC);
+      h.putInt(VERSION);
+      h.putInt(bins);
+      h.putInt(chan);
+      h.putInt(RECORD_HEADER_SIZE + 4 * bins);
+      h.putLong(now);
+      h.putLong(0L);
+      byte[] id = device.getBytes(StandardCharsets.UTF_8);
+      h.put(id, 0, Math.min(id.length, DEVICE_ID_SIZE));
+      h.clear();
+      raf.getChannel().write(h, 0);
+    }
+
+    return new SpectrumLog(file, true);
+  }
+
+  /**
+   * Open an existing log for reading.
+   *
+   * @param file
+   * @return the log
+   * @throws IOException
+   */
+  public static SpectrumLog open(File file)
+    throws IOException
+  {
+    return new SpectrumLog(file, false);
+  }
+
+  /**
+   * Append a snapshot.
+   *
+   * @param timer timer value read with the histogram
+   * @param sequence
+   * @param data
+   * @throws IOException
+   */
+  public void append(double timer, int sequence, IntBuffer data)
+    throws IOException
+  {
+    ByteBuffer record = record(records);
+    record.putLong(System.currentTimeMillis());
+    record.putDouble(timer);
+    record.putInt(sequence);
+    record.putInt(0);
+    IntBuffer src = data.duplicate();
+    src.clear();
+    src.limit(Math.min(bins, src.capacity()));
+    record.asIntBuffer().put(src);
+
+    // the count goes last so a reader never sees a partial record
+    header.putLong(32, ++records);
+  }
+
+  /**
+   * Read the bin counts of a record.
+   *
+   * @param index
+   * @param dst receives the counts, sized for the number of bins
+   * @return the timer value of the record
+   * @throws IOException
+   */
+  public double read(long index, IntBuffer dst)
+    throws IOException
+  {
+    checkIndex(index);
+
+    ByteBuffer record = record(index);
+    double timer = record.getDouble(8);
+    record.position(RECORD_HEADER_SIZE);
+    IntBuffer counts = record.asIntBuffer();
+    dst.clear();
+    dst.put(counts);
+    dst.flip();
+
+    return timer;
+  }
+
+  /**
+   *
+   * @param index
+   * @return the time the record was read, ms since the epoch
+   * @throws IOException
+   */
+  public long getTime(long index)
+    throws IOException
+  {
+    checkIndex(index);
+
+    return record(index).getLong(0);
+  }
+
+  /**
+   *
+   * @return the number of records, including any appended by another
+   * process since the log was opened
+   */
+  public long getRecordCount()
+  {
+    if (!writable)
+    {
+      records = header.getLong(32);
+    }
+
+    return records;
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  public String getDevice()
+  {
+    return device;
+  }
+
+  public int getChannel()
+  {
+    return chan;
+  }
+
+  public int getBins()
+  {
+    return bins;
+  }
+
+  /**
+   *
+   * @return start of the run, ms since the epoch
+   */
+  public long getStart()
+  {
+    return start;
+  }
+
+  /**
+   * Close the log. A log that was written is trimmed to the records it
+   * holds.
+   */
+  public void close()
+  {
+    chunk = null;
+    try
+    {
+      if (writable)
+      {
+        header.force();
+        channel.truncate(HEADER_SIZE + records * recordSize);
+      }
+      raf.close();
+    }
+    catch (IOException ex)
+    {
+      Logger.getLogger(SpectrumLog.class.getName()).log(Level.WARNING, null, ex);
+    }
+  }
+
+  /**
+   *
+   * @param index
+   * @return the record, positioned at 0 and limited to its size
+   * @throws IOException
+   */
+  private ByteBuffer record(long index)
+    throws IOException
+  {
+    long c = index / CHUNK_RECORDS;
+    int offset = (int)(index % CHUNK_RECORDS) * recordSize;
+    // a chunk mapped for reading may end before records appended since
+    if (c != chunkIndex || chunk.capacity() < offset + recordSize)
+    {
+      long position = HEADER_SIZE + c * CHUNK_RECORDS * recordSize;
+      long size = (long)CHUNK_RECORDS * recordSize;
+      if (!writable)
+      {
+        size = Math.min(size, channel.size() - position);
+      }
+      chunk = channel.map(writable ? FileChannel.MapMode.READ_WRITE :
+        FileChannel.MapMode.READ_ONLY, position, size);
+      chunk.order(ByteOrder.LITTLE_ENDIAN);
+      chunkIndex = c;
+    }
+
+    chunk.clear();
+    chunk.position(offset);
+    chunk.limit(offset + recordSize);
+
+    return chunk.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   *
+   * @param index
+   * @throws IOException
+   */
+  private void checkIndex(long index)
+    throws IOException
+  {
+    if (index < 0 || index >= getRecordCount())
+    {
+      throw new IOException("Record "+index+" outside range of 0 to "+(records-1));
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import org.json.JSONObject;
+
+/**
+ * Re-streams the snapshots of a {@link SpectrumLog} to one session as if
+ * they were being read from the device, in the format the session has
+ * asked for. The gaps between snapshots are those of the original run
+ * divided by the replay speed, and a speed of 0 sends the snapshots as
+ * fast as the session takes them. Each snapshot is sent by one step of
+ * the job, so a replay only holds a thread while it is sending.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class SpectrumReplay extends ScheduledJob
+{
+  // milliseconds to wait for a session that is behind to catch up
+  private static final long BACKLOG_WAIT = 20;
+
+  private final Session user;
+
+  private final SpectrumLog log;
+
+  private final String run;
+
+  private final double speed;
+
+  private final IntBuffer data;
+
+  private final HistogramDeltaEncoder encoder = new HistogramDeltaEncoder();
+
+  // writes the JSON messages, one step at a time
+  private final JsonWriter jsonWriter = new JsonWriter(4 * 65536);
+
+  // index of the next record to send
+  private long next;
+
+  // time of the last record sent, or -1 before the first
+  private long previous = -1;
+
+  /**
+   *
+   * @param user
+   * @param log
+   * @param run name of the run, as listed by list_history
+   * @param speed multiple of the original rate, or 0 for no delay
+   * @param from index of the first record to send
+   */
+  public SpectrumReplay(Session user, SpectrumLog log, String run, double speed,
+    long from)
+  {
+    this.user = user;
+    this.log = log;
+    this.run = run;
+    this.speed = speed;
+    this.next = Math.max(0, from);
+    this.data = IntBuffer.allocate(log.getBins());
+  }
+
+  /**
+   * Send the next record.
+   *
+   * @return milliseconds to wait before sending the record after it, or
+   * -1 once every record has been sent
+   */
+  @Override
+  protected long step()
+  {
+    try
+    {
+      if (!user.isOpen())
+      {
+        // the session has gone, so stop and close the log
+        return -1;
+      }
+      if (previous < 0)
+      {
+        sendState(true);
+      }
+      if (next >= log.getRecordCount())
+      {
+        return -1;
+      }
+      if (Client.getSendQueue(user).isBacklogged())
+      {
+        return BACKLOG_WAIT;
+      }
+
+      previous = log.getTime(next);
+      double timer = log.read(next, data);
+      send(next, timer);
+      next++;
+
+      if (next >= log.getRecordCount())
+      {
+        return -1;
+      }
+      if (speed <= 0)
+      {
+        return 0;
+      }
+
+      return Math.max(0, (long)((log.getTime(next) - previous) / speed));
+    }
+    catch (IOException ex)
+    {
+      Logger.getLogger(SpectrumReplay.class.getName()).log(Level.WARNING, null, ex);
+      return -1;
+    }
+  }
+
+  @Override
+  protected void finished()
+  {
+    log.close();
+    Client.replayStopped(user, this);
+    try
+    {
+      sendState(false);
+    }
+    catch (IOException ex)
+    {
+      Logger.getLogger(SpectrumReplay.class.getName()).log(Level.WARNING, null, ex);
+    }
+  }
+
+  /**
+   *
+   * @param record
+   * @param timer
+   * @throws IOException
+   */
+  private void send(long record, double timer)
+    throws IOException
+  {
+    if (Client.binarySessions.contains(user))
+    {
+      Client.sendBinaryMessage(user, encoder.encode(BinaryFrame.REPLAY_DEVICE,
+        log.getChannel(), timer, (int)record, data));
+      return;
+    }
+
+    // the histogram is written as the live push writes it
+    JsonWriter out = jsonWriter.clear();
+    out.raw('{');
+    DeviceConnection.writeHistogramFields(out, log.getChannel(), timer, data, null);
+    out.name("record").value(record);
+    out.name("replay").string(run);
+    out.name("type").string("resp");
+    out.name("message").string("");
+    out.name("command").string("get_histogram_data");
+    out.name("status").value(0);
+
+    Client.sendJSONTextMessage(user, out.raw('}').toString());
+  }
+
+  /**
+   *
+   * @param active
+   * @throws IOException
+   */
+  private void sendState(boolean active)
+    throws IOException
+  {
+    JSONObject json = Client.createJSONResponseObject();
+    json.put("command", "replay_history");
+    json.put("message", "");
+    json.put("run", run);
+    json.put("chan", log.getChannel());
+    json.put("records", log.getRecordCount());
+    json.put("state", active ? "active" : "inactive");
+    json.put("status", 0);
+
+    Client.sendJSONObjectMessage(user, json);
+  }
+}
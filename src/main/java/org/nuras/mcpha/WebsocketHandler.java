@@ -16,25 +16,127 @@
 package org.nuras.mcpha;
 
 import java.io.IOException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.*;
 
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import static org.nuras.mcpha.CommandRegistry.*;
 
 /**
+ * Takes the websocket sessions' messages and runs their commands.
  *
  * @author John Preston<byhisdeeds@gmail.com>
  */
 @WebSocket
 public class WebsocketHandler
 {
+  private static final CommandRegistry commands = new CommandRegistry()
+    .register("connect", SUBSCRIBE, (user, device, req) ->
+      Client.getDevice(req.getDeviceId()).connectToDevice(user,
+        req.getString("deviceip"), (int)req.getLong("port")))
+    .register("disconnect", 0, (user, device, req) ->
+      Client.removeDevice(user, req.getDeviceId()))
+    .register("subscribe", SUBSCRIBE, (user, device, req) ->
+      Client.getDevice(req.getDeviceId()).subscribe(user))
+    .register("unsubscribe", 0, (user, device, req) ->
+      Client.getDevice(req.getDeviceId()).unsubscribe(user))
+    .register("set_binary_mode", SUBSCRIBE, (user, device, req) ->
+      Client.setBinaryMode(user, req.getLong("state") == 1))
+    .register("list_history", 0, (user, device, req) ->
+      Client.listHistory(user))
+    .register("replay_history", 0, (user, device, req) ->
+      Client.startReplay(user, req.getString("run"), req.getDouble("speed", 1.0),
+        req.getLong("from", 0L)))
+    .register("stop_replay", 0, (user, device, req) ->
+      Client.stopReplay(user))
+    .register("set_sample_rate", DEVICE | SUBSCRIBE, (user, device, req) ->
+      device.mcphaSetSampleRate(req.getLong("value")))
+    // settings tuned live, as a slider is dragged
+    .register("set_pha_delay", DEVICE | SUBSCRIBE | LATEST_WINS, (user, device, req) ->
+      device.mcphaSetPhaDelay(chan(req), req.getLong("value")))
+    .register("set_pha_min_threshold", DEVICE | SUBSCRIBE | LATEST_WINS, (user, device, req) ->
+      device.mcphaSetPhaMinThreshold(chan(req), req.getLong("value")))
+    .register("set_pha_max_threshold", DEVICE | SUBSCRIBE | LATEST_WINS, (user, device, req) ->
+      device.mcphaSetPhaMaxThreshold(chan(req), req.getLong("value")))
+    .register("set_baseline_mode", DEVICE | SUBSCRIBE | LATEST_WINS, (user, device, req) ->
+      device.mcphaSetBaselineMode(chan(req), req.getLong("value")))
+    .register("set_baseline_level", DEVICE | SUBSCRIBE | LATEST_WINS, (user, device, req) ->
+      device.mcphaSetBaselineLevel(chan(req), req.getLong("value")))
+    .register("set_negator_mode", DEVICE | SUBSCRIBE | LATEST_WINS, (user, device, req) ->
+      device.mcphaSetNegatorMode(chan(req), req.getLong("value")))
+    .register("set_roi", DEVICE | SUBSCRIBE | LATEST_WINS, (user, device, req) ->
+    {
+      // ROI's are named, the numbered ROI's of older pages included
+      String name = req.has("name") ? req.getString("name") : "ROI #"+req.getString("roi");
+      device.mcphaSetRoi(user, chan(req), name, (int)req.getLong("from"),
+        (int)req.getLong("to"));
+    })
+    .register("set_peak_search", DEVICE | SUBSCRIBE, (user, device, req) ->
+      device.mcphaSetPeakSearch(chan(req), req.getDouble("fwhm"),
+        req.getDouble("resolution"), req.getDouble("sensitivity")))
+    .register("get_rate_history", DEVICE | SUBSCRIBE, (user, device, req) ->
+      device.getRateHistory(user, chan(req)))
+    .register("set_dead_time", DEVICE | SUBSCRIBE, (user, device, req) ->
+      // microseconds per event
+      device.mcphaSetDeadTime(chan(req), req.getDouble("value") * 1e-6))
+    .register("delete_roi", DEVICE | SUBSCRIBE, (user, device, req) ->
+      device.mcphaDeleteRoi(chan(req), req.getString("name", null)))
+    .register("set_histogram_view", DEVICE | SUBSCRIBE | LATEST_WINS, (user, device, req) ->
+    {
+      long points = req.getLong("points", 0L);
+      if (points <= 0)
+      {
+        device.setHistogramView(user, null);
+      }
+      else
+      {
+        device.setHistogramView(user, new HistogramView((int)req.getLong("from"),
+          (int)req.getLong("to"), (int)points,
+          HistogramView.parseMode(req.getString("mode", null))));
+      }
+    })
+    .register("set_acquisition_state", DEVICE | SUBSCRIBE, (user, device, req) ->
+    {
+      int chan = chan(req);
+      switch ((int)req.getLong("state"))
+      {
+        case 0: // STOP aquisition
+          device.mcphaStopAcquisition(chan);
+          break;
+        case 1: // START acquisition
+          device.mcphaStartAcquisition(chan, Client.TIMER_FREQ * req.getLong("acqtime"));
+          break;
+      }
+    })
+    .register("get_acquisition_state", DEVICE | SUBSCRIBE, (user, device, req) ->
+      device.mcphaGetAquisitionState(user, chan(req)))
+    .register("clear_spectrum_data", DEVICE | SUBSCRIBE, (user, device, req) ->
+      device.clearSpectrumData(chan(req)))
+    .register("acq_oscilloscope", DEVICE | SUBSCRIBE, (user, device, req) ->
+      device.acquireOscilloscopeData(user, (int)req.getLong("channels"),
+        req.getString("trigger_mode"), (int)req.getLong("trigger_level"),
+        req.getString("trigger_slope"), (int)req.getLong("trigger_source")))
+    .register("start_oscilloscope_stream", DEVICE | SUBSCRIBE, (user, device, req) ->
+      device.startOscilloscopeStream((int)req.getLong("channels"),
+        req.getString("trigger_mode"), (int)req.getLong("trigger_level"),
+        req.getString("trigger_slope"), (int)req.getLong("trigger_source")))
+    .register("stop_oscilloscope_stream", DEVICE | SUBSCRIBE, (user, device, req) ->
+      device.stopOscilloscopeStream());
+
   private String sender, msg;
 
+  /**
+   * 
+   * @param req
+   * @return the ADC channel the command is for, 0 or 1
+   * @throws IOException 
+   */
+  private static int chan(CommandRequest req)
+    throws IOException
+  {
+    return (int)req.getLong("chan", 0L);
+  }
+
   @OnWebSocketConnect
   public void onConnect(Session user) throws Exception
   {
@@ -49,7 +151,7 @@ public class WebsocketHandler
   {
     String username = Client.userUsernameMap.get(user);
     
-    Client.userUsernameMap.remove(user);
+    Client.removeSession(user);
     
     Client.broadcastMessage(sender = "Server", msg = (username + " left the chat"));
     
@@ -64,88 +166,9 @@ public class WebsocketHandler
   @OnWebSocketMessage
   public void onMessage(final Session user, String message)
   {
-    String command = null;
-    // parse json message
-    JSONParser parser = new JSONParser();
-    try
-    {
-      Client.logDebugMessage("MSG_RECEIVED -- sender="+sender+", message="+message);
-      
-      Client.sendJSONTextMessage(user.getRemote(), message);
+    Client.logDebugMessage("MSG_RECEIVED -- sender="+sender+", message="+message);
 
-      String msg;
-      JSONObject json = (JSONObject)parser.parse(message);
-      command = json.get("command").toString();
-      if (command.equals("connect"))
-      {
-        String deviceip = json.get("deviceip").toString();
-        long port = (long)json.get("port");
-        Client.connectToDevice(user, deviceip, (int)port);
-      }
-      else if (command.equals("disconnect"))
-      {
-        Client.disconnectFromDevice(user);
-      }
-      else if (command.equals("set_sample_rate"))
-      {
-        long value = (long)json.get("value");
-        Client.mcphaSetSampleRate(value);
-      }
-      else if (command.equals("set_roi"))
-      {
-        long roi = (long)json.get("roi");
-        long start = (long)json.get("from");
-        long end = (long)json.get("to");
-        Client.mcphaSetRoi(user, (int)roi, (int)start, (int)end);
-      }
-      else if (command.equals("set_acquisition_state"))
-      {
-        switch ((int)(long)json.get("state"))
-        {
-          case 0: // STOP aquisition
-            Client.mcphaStopAcquisition(user, 0);
-            break;
-          case 1: // START acquisition
-            Client.mcphaSetTimerValue(0L, Client.TIMER_FREQ * (long)json.get("acqtime"));
-            Client.mcphaResetTimer(0);
-            Client.mcphaStartAcquisition(user, 0);
-            break;
-        }
-      }
-      else if (command.equals("get_acquisition_state"))
-      {
-        Client.mcphaGetAquisitionState(user);
-      }
-      else if (command.equals("clear_spectrum_data"))
-      {
-        Client.clearSpectrumData(user, 0L);
-      }
-      else if (command.equals("acq_oscilloscope"))
-      {
-        long channels = (long)json.get("channels");
-        long trigger_level = (long)json.get("trigger_level");
-        String trigger_slope  = json.get("trigger_slope").toString();
-        String trigger_mode  = json.get("trigger_mode").toString();
-        long trigger_source = (long)json.get("trigger_source");
-        Client.acquireOscilloscopeData(user, (int)channels, trigger_mode,
-          (int)trigger_level, trigger_slope, (int)trigger_source);
-      }
-    }
-    catch (ParseException | IOException ex)
-    {
-      org.json.JSONObject j = new org.json.JSONObject();
-      j.put("command", command);
-      j.put("message", ex.toString());
-      j.put("status", 1);
-      try
-      {
-        Client.sendJSONObjectMessage(user.getRemote(), j);
-      }
-      catch (IOException ex1)
-      {
-        Logger.getLogger(WebsocketHandler.class.getName()).log(Level.SEVERE, null, ex1);
-      }
-    }
+    commands.dispatch(user, message);
   }
 
 }
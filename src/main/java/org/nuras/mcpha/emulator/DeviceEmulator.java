@@ -0,0 +1,444 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha.emulator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Emulates any number of MCPHA boards, each listening on its own port and
+ * speaking the board's protocol of 8-byte little-endian command words,
+ * so the client can be run and measured without the hardware. All boards
+ * are served by one selector thread. Every response is held back by the
+ * configured latency plus a random jitter, while keeping the responses on
+ * a connection in order.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class DeviceEmulator implements Runnable
+{
+  public static final int DEFAULT_PORT = 1001;
+
+  private static final int COMMAND_SIZE = 8;
+
+  private final Selector selector;
+
+  private final SyntheticSpectrum spectrum = new SyntheticSpectrum();
+
+  private final long latency;
+
+  private final long jitter;
+
+  private final Random random = new Random();
+
+  // responses waiting for their time to be sent, earliest first
+  private final PriorityQueue<Response> pending = new PriorityQueue<>();
+
+  private long nextBoardSeed = 1;
+
+  /**
+   * A response held back until it is due.
+   */
+  private static class Response implements Comparable<Response>
+  {
+    final Connection connection;
+
+    final ByteBuffer data;
+
+    final long due;
+
+    Response(Connection connection, ByteBuffer data, long due)
+    {
+      this.connection = connection;
+      this.data = data;
+      this.due = due;
+    }
+
+    @Override
+    public int compareTo(Response o)
+    {
+      return Long.compare(due, o.due);
+    }
+  }
+
+  /**
+   * A client connected to one board.
+   */
+  private static class Connection
+  {
+    final SocketChannel channel;
+
+    final VirtualBoard board;
+
+    final ByteBuffer command = ByteBuffer.allocate(COMMAND_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    // responses that are due, in order
+    final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+
+    // time the last response queued on this connection is due
+    long lastDue = 0;
+
+    Connection(SocketChannel channel, VirtualBoard board)
+    {
+      this.channel = channel;
+      this.board = board;
+    }
+  }
+
+  /**
+   *
+   * @param host address to listen on
+   * @param port port of the first board, the others follow on
+   * @param boards number of boards
+   * @param rate mean events per second per channel
+   * @param latency response latency in ms
+   * @param jitter maximum extra latency in ms
+   * @throws IOException
+   */
+  public DeviceEmulator(String host, int port, int boards, double rate,
+    double latency, double jitter)
+    throws IOException
+  {
+    this.latency = (long)(latency * 1e6);
+    this.jitter = (long)(jitter * 1e6);
+    selector = Selector.open();
+
+    for (int i=0; i<boards; i++)
+    {
+      ServerSocketChannel server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(host, port + i));
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT, new VirtualBoard(
+        spectrum, nextBoardSeed++, rate));
+    }
+  }
+
+  @Override
+  public void run()
+  {
+    while (selector.isOpen())
+    {
+      try
+      {
+        long timeout = 0;
+        if (!pending.isEmpty())
+        {
+          long wait = pending.peek().due - System.nanoTime();
+          timeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+        }
+        selector.select(timeout);
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext())
+        {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try
+          {
+            if (!key.isValid())
+            {
+              continue;
+            }
+            if (key.isAcceptable())
+            {
+              accept(key);
+              continue;
+            }
+            if (key.isReadable())
+            {
+              read(key);
+            }
+            if (key.isValid() && key.isWritable())
+            {
+              write(key);
+            }
+          }
+          catch (IOException ex)
+          {
+            close(key);
+          }
+        }
+
+        release();
+      }
+      catch (ClosedSelectorException ex)
+      {
+        // closed from another thread
+        return;
+      }
+      catch (IOException ex)
+      {
+        Logger.getLogger(DeviceEmulator.class.getName()).log(Level.SEVERE, null, ex);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stop serving and close all connections.
+   */
+  public void close()
+  {
+    try
+    {
+      for (SelectionKey key : selector.keys())
+      {
+        key.channel().close();
+      }
+      selector.close();
+    }
+    catch (IOException ex)
+    {
+      Logger.getLogger(DeviceEmulator.class.getName()).log(Level.WARNING, null, ex);
+    }
+  }
+
+  /**
+   *
+   * @param key
+   * @throws IOException
+   */
+  private void accept(SelectionKey key)
+    throws IOException
+  {
+    SocketChannel channel = ((ServerSocketChannel)key.channel()).accept();
+    if (channel == null)
+    {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    channel.register(selector, SelectionKey.OP_READ,
+      new Connection(channel, (VirtualBoard)key.attachment()));
+  }
+
+  /**
+   * Read and execute whole command words, queueing their responses.
+   *
+   * @param key
+   * @throws IOException
+   */
+  private void read(SelectionKey key)
+    throws IOException
+  {
+    Connection c = (Connection)key.attachment();
+    while (true)
+    {
+      int n = c.channel.read(c.command);
+      if (n < 0)
+      {
+        close(key);
+        return;
+      }
+      if (c.command.hasRemaining())
+      {
+        return;
+      }
+
+      long now = System.nanoTime();
+      ByteBuffer response = c.board.execute(c.command.getLong(0), now);
+      c.command.clear();
+      if (response != null)
+      {
+        long delay = latency + (jitter > 0 ? (long)(random.nextDouble() * jitter) : 0);
+        c.lastDue = Math.max(c.lastDue, now + delay);
+        pending.add(new Response(c, response, c.lastDue));
+      }
+    }
+  }
+
+  /**
+   * Move responses that are due to their connection's output.
+   */
+  private void release()
+  {
+    long now = System.nanoTime();
+    while (!pending.isEmpty() && pending.peek().due <= now)
+    {
+      Response r = pending.poll();
+      SelectionKey key = r.connection.channel.keyFor(selector);
+      if (key == null || !key.isValid())
+      {
+        continue;
+      }
+      r.connection.output.add(r.data);
+      key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   *
+   * @param key
+   * @throws IOException
+   */
+  private void write(SelectionKey key)
+    throws IOException
+  {
+    Connection c = (Connection)key.attachment();
+    while (!c.output.isEmpty())
+    {
+      ByteBuffer b = c.output.peek();
+      c.channel.write(b);
+      if (b.hasRemaining())
+      {
+        return;
+      }
+      c.output.poll();
+    }
+    key.interestOps(SelectionKey.OP_READ);
+  }
+
+  /**
+   *
+   * @param key
+   */
+  private void close(SelectionKey key)
+  {
+    key.cancel();
+    try
+    {
+      key.channel().close();
+    }
+    catch (IOException ex)
+    {
+      // already gone
+    }
+  }
+
+  /**
+   *
+   * @param args
+   * @throws org.apache.commons.cli.ParseException
+   * @throws java.io.IOException
+   */
+  public static void main(String[] args)
+    throws ParseException, IOException
+  {
+    Option helpOption = Option.builder("h")
+                              .longOpt("help")
+                              .required(false)
+                              .desc("shows this message")
+                              .build();
+
+    Option hostOption = Option.builder("a")
+                              .longOpt("address")
+                              .numberOfArgs(1)
+                              .required(false)
+                              .type(String.class)
+                              .desc("address to listen on (default 0.0.0.0)")
+                              .build();
+
+    Option portOption = Option.builder("p")
+                              .longOpt("port")
+                              .numberOfArgs(1)
+                              .required(false)
+                              .type(Number.class)
+                              .desc("port of the first board, the others follow on (default "+DEFAULT_PORT+")")
+                              .build();
+
+    Option boardsOption = Option.builder("b")
+                                .longOpt("boards")
+                                .numberOfArgs(1)
+                                .required(false)
+                                .type(Number.class)
+                                .desc("number of boards (default 1)")
+                                .build();
+
+    Option rateOption = Option.builder("r")
+                              .longOpt("rate")
+                              .numberOfArgs(1)
+                              .required(false)
+                              .type(Number.class)
+                              .desc("counts per second per channel (default 1000)")
+                              .build();
+
+    Option latencyOption = Option.builder("l")
+                                 .longOpt("latency")
+                                 .numberOfArgs(1)
+                                 .required(false)
+                                 .type(Number.class)
+                                 .desc("response latency in ms (default 0)")
+                                 .build();
+
+    Option jitterOption = Option.builder("j")
+                                .longOpt("jitter")
+                                .numberOfArgs(1)
+                                .required(false)
+                                .type(Number.class)
+                                .desc("maximum extra random latency in ms (default 0)")
+                                .build();
+
+    Options options = new Options();
+    options.addOption(helpOption);
+    options.addOption(hostOption);
+    options.addOption(portOption);
+    options.addOption(boardsOption);
+    options.addOption(rateOption);
+    options.addOption(latencyOption);
+    options.addOption(jitterOption);
+
+    CommandLineParser parser = new DefaultParser();
+    CommandLine cmdLine = parser.parse(options, args);
+
+    if (cmdLine.hasOption("help"))
+    {
+      HelpFormatter formatter = new HelpFormatter();
+      formatter.printHelp("mcpha-emulator", options);
+      return;
+    }
+
+    String host = cmdLine.hasOption("address") ?
+      (String)cmdLine.getParsedOptionValue("address") : "0.0.0.0";
+    int port = cmdLine.hasOption("port") ?
+      ((Number)cmdLine.getParsedOptionValue("port")).intValue() : DEFAULT_PORT;
+    int boards = cmdLine.hasOption("boards") ?
+      ((Number)cmdLine.getParsedOptionValue("boards")).intValue() : 1;
+    double rate = cmdLine.hasOption("rate") ?
+      ((Number)cmdLine.getParsedOptionValue("rate")).doubleValue() : 1000.0;
+    double latency = cmdLine.hasOption("latency") ?
+      ((Number)cmdLine.getParsedOptionValue("latency")).doubleValue() : 0.0;
+    double jitter = cmdLine.hasOption("jitter") ?
+      ((Number)cmdLine.getParsedOptionValue("jitter")).doubleValue() : 0.0;
+
+    DeviceEmulator emulator = new DeviceEmulator(host, port, boards, rate,
+      latency, jitter);
+    System.out.println("Emulating "+boards+" board(s) on "+host+" ports "+
+      port+" to "+(port + boards - 1));
+    emulator.run();
+  }
+}
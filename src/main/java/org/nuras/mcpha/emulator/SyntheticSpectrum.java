@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha.emulator;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A pulse height spectrum to draw emulated events from: an exponential
+ * Compton-like background with a few Gaussian photopeaks on top. Events
+ * are drawn by a binary search of the cumulative distribution, so drawing
+ * costs the same whatever the shape.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class SyntheticSpectrum
+{
+  public static final int BINS = 16384;
+
+  // peak positions (bins) and their share of all events
+  private static final int[] PEAKS = new int[]{1150, 2650, 5320, 10200};
+
+  private static final double[] PEAK_WEIGHTS = new double[]{0.06, 0.12, 0.05, 0.02};
+
+  // peak width as a fraction of the peak position (about 7% FWHM)
+  private static final double RESOLUTION = 0.03;
+
+  private static final double BACKGROUND_SLOPE = 1.0 / 1800.0;
+
+  private final double[] cdf = new double[BINS];
+
+  /**
+   *
+   */
+  public SyntheticSpectrum()
+  {
+    double sum = 0.0;
+    double[] pdf = new double[BINS];
+    for (int i=0; i<BINS; i++)
+    {
+      // no counts below the noise threshold
+      double p = i < 40 ? 0.0 : Math.exp(-i * BACKGROUND_SLOPE);
+      pdf[i] = p;
+      sum += p;
+    }
+    double background = 1.0;
+    for (double w : PEAK_WEIGHTS)
+    {
+      background -= w;
+    }
+    for (int i=0; i<BINS; i++)
+    {
+      pdf[i] = background * pdf[i] / sum;
+    }
+    for (int k=0; k<PEAKS.length; k++)
+    {
+      double sigma = PEAKS[k] * RESOLUTION;
+      double norm = PEAK_WEIGHTS[k] / (sigma * Math.sqrt(2.0 * Math.PI));
+      for (int i=0; i<BINS; i++)
+      {
+        double z = (i - PEAKS[k]) / sigma;
+        pdf[i] += norm * Math.exp(-0.5 * z * z);
+      }
+    }
+
+    double total = 0.0;
+    for (int i=0; i<BINS; i++)
+    {
+      total += pdf[i];
+      cdf[i] = total;
+    }
+    for (int i=0; i<BINS; i++)
+    {
+      cdf[i] /= total;
+    }
+  }
+
+  /**
+   *
+   * @param random
+   * @return the bin of a random event
+   */
+  public int sample(Random random)
+  {
+    int i = Arrays.binarySearch(cdf, random.nextDouble());
+
+    return Math.min(BINS - 1, i < 0 ? -i - 1 : i);
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha.emulator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.nuras.mcpha.Client.*;
+
+/**
+ * The state of one emulated MCPHA board: a histogram and timer per
+ * channel, the PHA thresholds and the oscilloscope. Events arrive at a
+ * fixed mean rate per channel while the channel's timer runs, and are
+ * added to the histogram when it or the timer is read, so an idle board
+ * costs nothing. Not thread safe, boards are driven by a single emulator
+ * thread.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class VirtualBoard
+{
+  public static final int CHANNELS = 2;
+
+  public static final int SCOPE_SAMPLES = 16384;
+
+  // sample clock of the ADC
+  private static final double ADC_FREQ = 125e6;
+
+  // decay time constant of the emulated pulses, in ADC samples
+  private static final double PULSE_DECAY = 40.0;
+
+  private static final int NOISE = 6;
+
+  private static final int STATUS_RUNNING = 0x1;
+
+  private final SyntheticSpectrum spectrum;
+
+  private final Random random;
+
+  private final double rate;
+
+  private final int[][] histogram = new int[CHANNELS][SyntheticSpectrum.BINS];
+
+  // timer state per channel, in ticks of TIMER_FREQ
+  private final long[] timerPreset = new long[CHANNELS];
+
+  private final long[] timerTicks = new long[CHANNELS];
+
+  private final boolean[] timerRunning = new boolean[CHANNELS];
+
+  // nanoTime up to which events and ticks have been accounted for
+  private final long[] timerUpdated = new long[CHANNELS];
+
+  // fraction of an event carried over to the next update
+  private final double[] eventCarry = new double[CHANNELS];
+
+  private final long[] phaMin = new long[]{0, 0};
+
+  private final long[] phaMax = new long[]{SyntheticSpectrum.BINS, SyntheticSpectrum.BINS};
+
+  private long decimation = 4;
+
+  private int triggerSource = 0;
+
+  private boolean triggerFalling = false;
+
+  private boolean triggerAuto = false;
+
+  private long preTrigger = 5000;
+
+  private long totalSamples = 65536;
+
+  // nanoTime at which the running capture completes, or -1 if stopped
+  private long scopeDone = -1;
+
+  /**
+   *
+   * @param spectrum
+   * @param seed
+   * @param rate mean events per second per channel
+   */
+  public VirtualBoard(SyntheticSpectrum spectrum, long seed, double rate)
+  {
+    this.spectrum = spectrum;
+    this.random = new Random(seed);
+    this.rate = rate;
+  }
+
+  /**
+   * Execute a command word.
+   *
+   * @param command the 64-bit command word
+   * @param now System.nanoTime()
+   * @return the response, positioned at 0, or null if the command has none
+   */
+  public ByteBuffer execute(long command, long now)
+  {
+    long code = command >>> SHIFT_CODE;
+    int chan = (int)((command >>> SHIFT_CHAN) & 0xF) % CHANNELS;
+    long data = command & ((1L << SHIFT_CHAN) - 1);
+
+    if (code == MCPHA_COMMAND_RESET_TIMER)
+    {
+      update(chan, now);
+      timerTicks[chan] = 0;
+    }
+    else if (code == MCPHA_COMMAND_RESET_HISTOGRAM)
+    {
+      update(chan, now);
+      java.util.Arrays.fill(histogram[chan], 0);
+    }
+    else if (code == MCPHA_COMMAND_RESET_OSCILLOSCOPE)
+    {
+      scopeDone = -1;
+    }
+    else if (code == MCPHA_COMMAND_SET_SAMPLE_RATE)
+    {
+      decimation = Math.max(1, data);
+    }
+    else if (code == MCPHA_COMMAND_SET_PHA_MIN_THRESHOLD)
+    {
+      phaMin[chan] = data;
+    }
+    else if (code == MCPHA_COMMAND_SET_PHA_MAX_THRESHOLD)
+    {
+      phaMax[chan] = data;
+    }
+    else if (code == MCPHA_COMMAND_SET_TIMER_VALUE)
+    {
+      update(chan, now);
+      timerPreset[chan] = data;
+    }
+    else if (code == MCPHA_COMMAND_SET_TIMER_MODE)
+    {
+      update(chan, now);
+      timerRunning[chan] = data == 1;
+    }
+    else if (code == MCPHA_COMMAND_READ_TIMER)
+    {
+      update(chan, now);
+      return response(8).putLong(0, timerTicks[chan]);
+    }
+    else if (code == MCPHA_COMMAND_READ_HISTOGRAM_DATA)
+    {
+      update(chan, now);
+      ByteBuffer b = response(4 * SyntheticSpectrum.BINS);
+      b.asIntBuffer().put(histogram[chan]);
+      return b;
+    }
+    else if (code == MCPHA_COMMAND_SET_TRIGGER_SOURCE)
+    {
+      triggerSource = chan;
+    }
+    else if (code == MCPHA_COMMAND_SET_TRIGGER_SLOPE)
+    {
+      triggerFalling = data == 1;
+    }
+    else if (code == MCPHA_COMMAND_SET_TRIGGER_MODE)
+    {
+      triggerAuto = data == 1;
+    }
+    else if (code == MCPHA_COMMAND_SET_NUMBER_OF_SAMPLES_BEFORE_TRIGGER)
+    {
+      preTrigger = data;
+    }
+    else if (code == MCPHA_COMMAND_SET_TOTAL_NUMBER_OF_SAMPLES_TO_ACQUIRE)
+    {
+      totalSamples = data;
+    }
+    else if (code == MCPHA_COMMAND_START_OSCILLOSCOPE)
+    {
+      // the capture takes as long as filling the buffer, plus the wait for
+      // a pulse to trigger on
+      double sampleTime = decimation / ADC_FREQ;
+      double wait = -Math.log(1.0 - random.nextDouble()) / Math.max(rate, 1e-3);
+      scopeDone = now + (long)((totalSamples * sampleTime + wait) * 1e9);
+    }
+    else if (code == MCPHA_COMMAND_READ_OSCILLOSCOPE_STATUS)
+    {
+      boolean running = scopeDone >= 0 && now < scopeDone;
+      return response(4).putInt(0, running ? STATUS_RUNNING : 0);
+    }
+    else if (code == MCPHA_COMMAND_READ_OSCILLOSCOPE_DATA)
+    {
+      return trace();
+    }
+
+    return null;
+  }
+
+  /**
+   * Advance the channel's timer to now, adding the events that arrived
+   * while it was running to the histogram.
+   *
+   * @param chan
+   * @param now
+   */
+  private void update(int chan, long now)
+  {
+    long elapsed = timerUpdated[chan] == 0 ? 0 : now - timerUpdated[chan];
+    timerUpdated[chan] = now;
+    if (!timerRunning[chan] || elapsed <= 0)
+    {
+      return;
+    }
+
+    long ticks = (long)(elapsed * (TIMER_FREQ / 1e9));
+    if (timerPreset[chan] > 0)
+    {
+      ticks = Math.min(ticks, Math.max(0, timerPreset[chan] - timerTicks[chan]));
+    }
+    timerTicks[chan] += ticks;
+
+    double events = ticks * TIME_PER_TICK * rate + eventCarry[chan];
+    long n = (long)events;
+    eventCarry[chan] = events - n;
+    int[] h = histogram[chan];
+    for (long i=0; i<n; i++)
+    {
+      int bin = spectrum.sample(random);
+      if (bin >= phaMin[chan] && bin <= phaMax[chan])
+      {
+        h[bin]++;
+      }
+    }
+  }
+
+  /**
+   *
+   * @return a trace of both channels, interleaved sample by sample, with
+   * a pulse on the trigger source at the trigger position and others at
+   * random
+   */
+  private ByteBuffer trace()
+  {
+    short[][] samples = new short[CHANNELS][SCOPE_SAMPLES];
+    double pulsesPerSample = rate * decimation / ADC_FREQ;
+    int sign = triggerFalling ? -1 : 1;
+
+    for (int c=0; c<CHANNELS; c++)
+    {
+      double[] y = new double[SCOPE_SAMPLES];
+      if (c == triggerSource && !(triggerAuto && random.nextBoolean()))
+      {
+        addPulse(y, (int)Math.min(preTrigger, SCOPE_SAMPLES - 1));
+      }
+      for (int i=0; i<SCOPE_SAMPLES; i++)
+      {
+        if (random.nextDouble() < pulsesPerSample)
+        {
+          addPulse(y, i);
+        }
+      }
+      for (int i=0; i<SCOPE_SAMPLES; i++)
+      {
+        double v = sign * y[i] + random.nextInt(2 * NOISE + 1) - NOISE;
+        samples[c][i] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+      }
+    }
+
+    ByteBuffer b = response(4 * SCOPE_SAMPLES);
+    for (int i=0; i<SCOPE_SAMPLES; i++)
+    {
+      b.putShort(samples[0][i]);
+      b.putShort(samples[1][i]);
+    }
+    b.flip();
+
+    return b;
+  }
+
+  /**
+   *
+   * @param y
+   * @param at
+   */
+  private void addPulse(double[] y, int at)
+  {
+    // pulse heights follow the spectrum, the full 14-bit range mapping to
+    // the histogram's bins
+    double height = spectrum.sample(random) / 2.0;
+    for (int i=at; i<y.length; i++)
+    {
+      double v = height * Math.exp(-(i - at) / (PULSE_DECAY / decimation));
+      if (v < 1.0)
+      {
+        break;
+      }
+      y[i] += v;
+    }
+  }
+
+  /**
+   *
+   * @param size
+   * @return a little-endian response buffer
+   */
+  private static ByteBuffer response(int size)
+  {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
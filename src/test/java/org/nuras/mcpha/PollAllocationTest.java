@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 John Preston<byhisdeeds@gmail.com> NURAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuras.mcpha;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuras.mcpha.emulator.DeviceEmulator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Polls an emulated device, idle and with no one subscribed, and checks
+ * that once warmed up a poll allocates nothing on the polling thread.
+ * The device I/O threads are not measured, as the JDK's selector
+ * allocates an entry in its selected-key set for each key it selects.
+ *
+ * @author John Preston<byhisdeeds@gmail.com>
+ */
+public class PollAllocationTest
+{
+  private static final int WARMUP_POLLS = 20000;
+
+  private static final int POLLS = 2000;
+
+  private DeviceEmulator emulator;
+
+  private DeviceConnection device;
+
+  private Session user;
+
+  @Before
+  public void setUp()
+    throws IOException
+  {
+    int port;
+    try (ServerSocket s = new ServerSocket(0))
+    {
+      port = s.getLocalPort();
+    }
+    emulator = new DeviceEmulator("127.0.0.1", port, 1, 1000.0, 0.0, 0.0);
+    Thread t = new Thread(emulator, "mcpha-emulator");
+    t.setDaemon(true);
+    t.start();
+
+    // a session that has already gone, so nothing is sent to it
+    user = (Session)Proxy.newProxyInstance(
+      Session.class.getClassLoader(), new Class<?>[] { Session.class },
+      (proxy, method, args) ->
+      {
+        switch (method.getName())
+        {
+          case "isOpen":
+            return false;
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          default:
+            return null;
+        }
+      });
+
+    device = new DeviceConnection("test", 0);
+    device.connectToDevice(user, "127.0.0.1", port);
+    device.unsubscribe(user);
+    assertTrue("not connected to the emulator", device.isConnected());
+  }
+
+  @After
+  public void tearDown()
+    throws IOException
+  {
+    device.disconnectFromDevice(user);
+    emulator.close();
+  }
+
+  @Test
+  public void pollDoesNotAllocate()
+    throws IOException
+  {
+    com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    for (int i=0; i<WARMUP_POLLS; i++)
+    {
+      device.pushHistogramData(DeviceConnection.ALL_CHANNELS);
+    }
+
+    long id = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(id);
+
+    for (int i=0; i<POLLS; i++)
+    {
+      device.pushHistogramData(DeviceConnection.ALL_CHANNELS);
+    }
+
+    long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+    // reading the counters may cost a few bytes, a poll allocating even a
+    // single object would cost more than one byte per poll
+    assertTrue(allocated+" bytes allocated over "+POLLS+" polls",
+      allocated < POLLS);
+  }
+}